@@ -0,0 +1,143 @@
+package cis5550.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Closed-loop load generator. Usage:
+//   LoadTestClient <host> <port> <path> <connections> <seconds> [close]
+// Every connection sends one request at a time and waits for the response before sending the
+// next one; with 'close' a new connection is opened for every request. Prints throughput and
+// latency percentiles at the end. Requests that see no response within 5 seconds count as errors;
+// 503 responses are counted separately and left out of throughput and latency.
+public class LoadTestClient {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 5) {
+      System.err.println(
+          "Syntax: LoadTestClient <host> <port> <path> <connections> <seconds> [close]");
+      System.exit(1);
+    }
+    String host = args[0];
+    int port = Integer.parseInt(args[1]);
+    String path = args[2];
+    int connections = Integer.parseInt(args[3]);
+    long durationMillis = Long.parseLong(args[4]) * 1000;
+    boolean close = args.length > 5 && args[5].equals("close");
+
+    byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+        + (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    AtomicLong errors = new AtomicLong();
+    AtomicLong rejected = new AtomicLong();
+    List<long[]> latencies = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    long end = start + durationMillis;
+
+    for (int i = 0; i < connections; i++) {
+      long[] samples = new long[1 << 16];
+      latencies.add(samples);
+      Thread t = new Thread(() -> {
+        int n = 0;
+        Socket sock = null;
+        InputStream in = null;
+        while (System.currentTimeMillis() < end) {
+          try {
+            if (sock == null) {
+              sock = new Socket(host, port);
+              sock.setSoTimeout(5000);
+              in = new BufferedInputStream(sock.getInputStream());
+            }
+            long t0 = System.nanoTime();
+            OutputStream out = sock.getOutputStream();
+            out.write(request);
+            out.flush();
+            String head = readResponse(in);
+            if (head.startsWith("HTTP/1.1 503")) {
+              rejected.incrementAndGet();
+            } else if (n < samples.length - 1) {
+              samples[++n] = System.nanoTime() - t0;
+            }
+            if (close || head.toLowerCase().contains("\r\nconnection: close")) {
+              sock.close();
+              sock = null;
+            }
+          } catch (IOException e) {
+            errors.incrementAndGet();
+            try {
+              if (sock != null) {
+                sock.close();
+              }
+            } catch (IOException ignored) {
+            }
+            sock = null;
+          }
+        }
+        samples[0] = n;
+        try {
+          if (sock != null) {
+            sock.close();
+          }
+        } catch (IOException ignored) {
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+
+    long[] all = latencies.stream()
+        .flatMapToLong(s -> Arrays.stream(s, 1, (int) s[0] + 1)).sorted().toArray();
+    System.out.printf("%d requests in %.1fs, %d rejected with 503, %d errors%n", all.length,
+        elapsed / 1000.0, rejected.get(), errors.get());
+    System.out.printf("throughput: %.0f req/s%n", all.length * 1000.0 / elapsed);
+    if (all.length > 0) {
+      System.out.printf("latency ms: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+          percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99),
+          all[all.length - 1] / 1e6);
+    }
+  }
+
+  static double percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+  }
+
+  // Reads one response with a Content-Length body; a connection without one is read to the end.
+  // Returns the response head.
+  static String readResponse(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int matched = 0;
+    while (matched < 4) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("Connection closed before end of response head");
+      }
+      head.write(b);
+      matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+    }
+    String headString = head.toString(StandardCharsets.ISO_8859_1);
+    long contentLength = -1;
+    for (String line : headString.split("\r\n")) {
+      if (line.toLowerCase().startsWith("content-length:")) {
+        contentLength = Long.parseLong(line.substring(15).trim());
+      }
+    }
+    if (contentLength < 0) {
+      in.readAllBytes();
+    } else {
+      in.skipNBytes(contentLength);
+    }
+    return headString;
+  }
+}
@@ -0,0 +1,50 @@
+package cis5550.test;
+
+import static cis5550.webserver.Server.acceptorShards;
+import static cis5550.webserver.Server.acceptors;
+import static cis5550.webserver.Server.executionMode;
+import static cis5550.webserver.Server.get;
+import static cis5550.webserver.Server.port;
+import static cis5550.webserver.Server.securePort;
+import static cis5550.webserver.Server.transport;
+
+import cis5550.webserver.Server.ExecutionMode;
+import cis5550.webserver.Server.Transport;
+import cis5550.webserver.transport.AcceptorShard;
+import java.util.stream.Collectors;
+
+// Server side of LoadTestClient. Usage: LoadTestServer <port> [THREAD_POOL|VIRTUAL_THREADS]
+// [BLOCKING|NIO] [acceptors]
+//   /io?ms=N    simulates a handler blocked on a downstream store for N milliseconds
+//   /cpu        returns immediately
+//   /bytes?n=N  returns an N-byte body (32KB by default)
+//   /acceptors  accept counters and rates per listening socket
+public class LoadTestServer {
+
+  public static void main(String[] args) throws Exception {
+    port(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+    securePort(args.length > 0 ? Integer.parseInt(args[0]) + 363 : 8443);
+    if (args.length > 1) {
+      executionMode(ExecutionMode.valueOf(args[1]));
+    }
+    if (args.length > 2) {
+      transport(Transport.valueOf(args[2]));
+    }
+    if (args.length > 3) {
+      acceptors(Integer.parseInt(args[3]));
+    }
+    get("/io", (req, res) -> {
+      String ms = req.queryParams("ms");
+      Thread.sleep(ms != null ? Long.parseLong(ms) : 20);
+      return "OK";
+    });
+    get("/cpu", (req, res) -> "OK");
+    get("/bytes", (req, res) -> {
+      String n = req.queryParams("n");
+      res.bodyAsBytes(new byte[n != null ? Integer.parseInt(n) : 32 * 1024]);
+      return null;
+    });
+    get("/acceptors", (req, res) -> acceptorShards().stream().map(AcceptorShard::toString)
+        .collect(Collectors.joining("\n", "", "\n")));
+  }
+}
@@ -56,21 +56,36 @@ public class SNIInspector {
   public void parseConnection(Socket conn) throws Exception {
     InputStream ins = conn.getInputStream();
 
-    byte[] buffer = new byte[5000];
+    // a TLS record header plus the largest plaintext record (2^14 bytes)
+    byte[] buffer = new byte[5 + 16384];
     if (!readToLength(ins, buffer, 0, 5)) {
       throw new Exception("Unable to read header");
     }
 
+    int recordLength = recordLength(buffer);
+    if (!readToLength(ins, buffer, 5, recordLength)) {
+      throw new Exception("Unable to read header");
+    }
+
+    parseClientHello(buffer, recordLength);
+  }
+
+  // Length of the TLS record (header included) whose 5-byte header starts the buffer; it has to
+  // be a handshake record.
+  public static int recordLength(byte[] buffer) throws Exception {
     if (buffer[0] != 22) {
       throw new Exception(
           "Expected record of type 22 for handshake, but got record type " + buffer[0]);
     }
-
     int recordLength = (((buffer[3] & 0xFF) << 8) | (buffer[4] & 0xFF)) + 5;
-    if (!readToLength(ins, buffer, 5, recordLength)) {
-      throw new Exception("Unable to read header");
+    if (recordLength > 5 + 16384) {
+      throw new Exception("Record length " + recordLength + " exceeds the TLS maximum");
     }
+    return recordLength;
+  }
 
+  // Same as parseConnection(), for a record that has already been read into buffer.
+  public void parseClientHello(byte[] buffer, int recordLength) throws Exception {
     byte[] b = new byte[recordLength];
     System.arraycopy(buffer, 0, b, 0, recordLength);
 
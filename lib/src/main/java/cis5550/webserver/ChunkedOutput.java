@@ -0,0 +1,73 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// The body of a response streamed with Response.write(), in the chunked transfer coding. Small
+// writes are coalesced into chunks of up to bufferSize bytes, so that a route writing a line at a
+// time does not produce a chunk (and a flush) per line; a write at least that big goes out as a
+// chunk of its own, without being copied. finish() sends the last chunk and the trailers, after
+// which the connection can carry the next request.
+final class ChunkedOutput {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n'};
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int buffered = 0;
+
+    ChunkedOutput(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 0)];
+    }
+
+    void write(byte[] b) throws IOException {
+        if (b.length == 0) {
+            // a zero-length chunk would end the body
+            return;
+        }
+        if (b.length <= buffer.length - buffered) {
+            System.arraycopy(b, 0, buffer, buffered, b.length);
+            buffered += b.length;
+            if (buffered < buffer.length) {
+                return;
+            }
+            writeChunk(buffer, buffered);
+            buffered = 0;
+        } else {
+            flushBuffered();
+            if (b.length < buffer.length) {
+                System.arraycopy(b, 0, buffer, 0, b.length);
+                buffered = b.length;
+            } else {
+                writeChunk(b, b.length);
+            }
+        }
+        out.flush();
+    }
+
+    void finish(Map<String, String> trailers) throws IOException {
+        flushBuffered();
+        out.write(LAST_CHUNK);
+        for (Map.Entry<String, String> e : trailers.entrySet()) {
+            out.write((e.getKey() + ':' + e.getValue() + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(CRLF);
+    }
+
+    private void flushBuffered() throws IOException {
+        if (buffered > 0) {
+            writeChunk(buffer, buffered);
+            buffered = 0;
+        }
+    }
+
+    private void writeChunk(byte[] b, int len) throws IOException {
+        out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(b, 0, len);
+        out.write(CRLF);
+    }
+}
@@ -1,7 +1,7 @@
 package cis5550.webserver;
 
-import java.time.OffsetDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
@@ -10,19 +10,28 @@ import java.util.stream.Stream;
 
 public abstract class HTTPMessage {
 
-    protected final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    protected final Map<String, String> headers;
     private final String initialLine;
     protected byte[] body;
 
     HTTPMessage(String initialLine, Map<String, String> headers, byte[] body) {
         this.initialLine = initialLine;
-        this.headers.put("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(OffsetDateTime.now()));
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.put("Date", HeaderCache.date());
         if (headers != null) {
             this.headers.putAll(headers);
         }
         this.body = body;
     }
 
+    // Keeps headers that were already parsed off the wire (see RequestHead.headers()) as they are
+    // instead of copying them; the map has to be case-insensitive.
+    HTTPMessage(Map<String, String> parsedHeaders, byte[] body) {
+        this.initialLine = null;
+        this.headers = parsedHeaders;
+        this.body = body;
+    }
+
     public static Map<String, String> parseHeaders(String headers) {
         return parseHeaders(Arrays.stream(headers.split("\r\n")));
     }
@@ -49,6 +58,69 @@ public abstract class HTTPMessage {
             .collect(Collectors.joining("\r\n")) + "\r\n\r\n";
     }
 
+    // Serializes the head straight into the buffer, without building a String first; the bytes
+    // are those of getHead(). The status line, the common header names and the Date header come
+    // pre-encoded from HeaderCache. Returns false if the head does not fit, leaving the buffer's
+    // position undefined.
+    public boolean writeHead(ByteBuffer buffer) {
+        byte[] initialLine = encodedInitialLine();
+        if (initialLine != null ? !put(buffer, initialLine)
+            : !put(buffer, getInitialLine()) || !put(buffer, "\r\n")) {
+            return false;
+        }
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            byte[] dateLine = HeaderCache.dateLine(e.getValue());
+            if (dateLine != null && e.getKey().equalsIgnoreCase("Date")) {
+                if (!put(buffer, dateLine)) {
+                    return false;
+                }
+                continue;
+            }
+            byte[] name = HeaderCache.headerName(e.getKey());
+            if (!(name != null ? put(buffer, name) : put(buffer, e.getKey()) && put(buffer, ":"))
+                || !put(buffer, e.getValue()) || !put(buffer, "\r\n")) {
+                return false;
+            }
+        }
+        return put(buffer, "\r\n");
+    }
+
+    // The initial line with its CRLF if it is available already encoded, else null.
+    protected byte[] encodedInitialLine() {
+        return null;
+    }
+
+    private static boolean put(ByteBuffer buffer, byte[] bytes) {
+        if (buffer.remaining() < bytes.length) {
+            return false;
+        }
+        buffer.put(bytes);
+        return true;
+    }
+
+    private static boolean put(ByteBuffer buffer, String s) {
+        int length = s.length();
+        if (buffer.remaining() < length) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // rare: anything but ASCII goes through the encoder, as in getHead()
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                buffer.position(start);
+                if (buffer.remaining() < bytes.length) {
+                    return false;
+                }
+                buffer.put(bytes);
+                return true;
+            }
+            buffer.put((byte) c);
+        }
+        return true;
+    }
+
     public String getInitialLine() {
         return initialLine;
     }
@@ -62,9 +134,9 @@ public abstract class HTTPMessage {
         this.headers.put("Content-Length", String.valueOf(body.length));
     }
 
-    // HW1 - Just 1.1
     public enum HTTPVersion {
-        HTTP1_1("HTTP/1.1");
+        HTTP1_1("HTTP/1.1"),
+        HTTP2("HTTP/2");
         public final String versionString;
 
         HTTPVersion(String versionString) {
@@ -0,0 +1,98 @@
+package cis5550.webserver;
+
+import cis5550.webserver.HTTPMessage.HTTPVersion;
+import cis5550.webserver.Response.Status;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The parts of a response head that are the same for many responses, encoded once: the status
+// lines of the well-known statuses, the names of common headers, and the Date header, which only
+// changes once a second and is refreshed by a ticker thread instead of being formatted for every
+// response.
+final class HeaderCache {
+
+    private static final String[] COMMON_HEADER_NAMES = {"Cache-Control", "Connection",
+        "Content-Encoding", "Content-Length", "Content-Range", "Content-Type", "Date", "ETag",
+        "Last-Modified", "Location", "Retry-After", "Server", "Set-Cookie", "Transfer-Encoding",
+        "Vary"};
+    // "<version> <code> <reason>\r\n" for HTTP/1.1, indexed by status code
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    // "<name>:" for each of the common header names
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<>();
+    private static volatile CachedDate date = CachedDate.now();
+
+    static {
+        for (int code = 100; code < STATUS_LINES.length; code++) {
+            Status status = Status.valueOf(code);
+            if (status.isWellKnown()) {
+                STATUS_LINES[code] = encode(HTTPVersion.HTTP1_1, status);
+            }
+        }
+        for (String name : COMMON_HEADER_NAMES) {
+            HEADER_NAMES.put(name, (name + ':').getBytes(StandardCharsets.US_ASCII));
+        }
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "date-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // ticks just after each second starts, so the header is never more than a tick behind
+        long untilNextSecond = 1000 - System.currentTimeMillis() % 1000;
+        ticker.scheduleAtFixedRate(() -> date = CachedDate.now(), untilNextSecond, 1000,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private HeaderCache() {
+    }
+
+    // The current value of the Date header.
+    static String date() {
+        return date.value;
+    }
+
+    // "Date:<value>\r\n" if value is what date() returned during the current second, else null.
+    static byte[] dateLine(String value) {
+        CachedDate current = date;
+        return current.value == value ? current.line : null;
+    }
+
+    // The status line including its CRLF.
+    static byte[] statusLine(HTTPVersion version, Status status) {
+        if (version == HTTPVersion.HTTP1_1 && status.isWellKnown()) {
+            return STATUS_LINES[status.code];
+        }
+        return encode(version, status);
+    }
+
+    // "<name>:" if name is one of the common header names, spelled the same way, else null.
+    static byte[] headerName(String name) {
+        return HEADER_NAMES.get(name);
+    }
+
+    private static byte[] encode(HTTPVersion version, Status status) {
+        return (version.versionString + ' ' + status + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class CachedDate {
+
+        final String value;
+        final byte[] line;
+
+        private CachedDate(String value) {
+            this.value = value;
+            this.line = ("Date:" + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        static CachedDate now() {
+            return new CachedDate(DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.now().atOffset(ZoneOffset.UTC)));
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package cis5550.webserver;
 
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Map;
 import java.util.Set;
 
@@ -44,6 +47,16 @@ public interface Request {
 
   int contentLength();
 
+  // The body as a stream that is read from the connection as it is consumed, for bodies too large
+  // to hold in memory; a chunked body comes out de-chunked. body() and bodyAsBytes() read the
+  // whole body into memory on first use; once they have, bodyStream() returns a stream over that
+  // copy instead. Whatever the route leaves unread is discarded after it returns.
+  InputStream bodyStream();
+
+  default ReadableByteChannel bodyChannel() {
+    return Channels.newChannel(bodyStream());
+  }
+
   // The methods below are used to access query parameters. Query parameters are sent as a string
   // of URL-encoded key-value pairs, separated with an ampersand (&). For instance, "foo=x%20y&abc=123"
   // contains two keys, 'foo' and 'abc', which have the values "x y" and "123", respectively. Notice
@@ -0,0 +1,325 @@
+package cis5550.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The body of one request, read from the connection only as the route asks for it. Bytes that
+// were read together with the head come out of the connection buffer first; after that, reads go
+// straight from the socket into the caller's array. Bodies sent with Transfer-Encoding: chunked
+// are de-chunked on the way, with chunk extensions and trailer fields dropped. Whatever the route
+// leaves unread is skipped afterwards (skipRemaining) so the next request can be parsed; the
+// connection buffer, which may have grown, is handed back with buffer().
+//
+// A chunked body can be given a limit on its decoded length; reading past it fails with
+// TooLargeException, which the server answers with 413.
+//
+// For a request with "Expect: 100-continue", the interim 100 response only goes out once the
+// route starts reading. A route or before filter that answers without touching the body (401,
+// 404, ...) thereby turns the upload away before the client sends it.
+public final class RequestBody extends InputStream {
+
+    public static final byte[] CONTINUE = ("HTTP/1.1 " + Response.Status.CONTINUE + "\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    // fill mode: the unread bytes of the connection are [0, position)
+    private ByteBuffer buffer;
+    private final InputStream in;
+    private final boolean chunked;
+    // bytes left in the body, or in the current chunk
+    private long remaining;
+    // limit on the decoded length of a chunked body, 0 for none, and the length so far
+    private final long maxLength;
+    private long decodedLength = 0;
+    private boolean started = false;
+    private boolean done;
+    // where the 100 response goes while the client is waiting for it, else null
+    private OutputStream awaitingContinue;
+    // the final response went out instead of a 100, so the client may never send the body
+    private boolean continueRefused = false;
+
+    // Thrown once a body turns out to be larger than the server accepts; answered with 413.
+    public static final class TooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private RequestBody(ByteBuffer buffer, InputStream in, boolean chunked, long length,
+        long maxLength) {
+        this.buffer = buffer;
+        this.in = in;
+        this.chunked = chunked;
+        this.remaining = chunked ? 0 : length;
+        this.maxLength = maxLength;
+        this.done = !chunked && length == 0;
+    }
+
+    // A body of exactly length bytes.
+    public static RequestBody fixed(ByteBuffer buffer, InputStream in, long length) {
+        return new RequestBody(buffer, in, false, length, 0);
+    }
+
+    // A body in the chunked transfer coding, of at most maxLength bytes once decoded (0 for no
+    // limit).
+    public static RequestBody chunked(ByteBuffer buffer, InputStream in, long maxLength) {
+        return new RequestBody(buffer, in, true, -1, maxLength);
+    }
+
+    // The client sent "Expect: 100-continue" and is holding the body back until the first read
+    // sends the 100 response to out.
+    public void expectContinue(OutputStream out) {
+        if (!done) {
+            awaitingContinue = out;
+        }
+    }
+
+    // The final response is going out before the body was asked for; a 100 response must not
+    // follow it any more.
+    public void cancelContinue() {
+        if (awaitingContinue != null) {
+            awaitingContinue = null;
+            continueRefused = true;
+        }
+    }
+
+    // Decodes a chunked body that is complete in buf[from, to), as found by chunkedLength().
+    public static byte[] dechunk(byte[] buf, int from, int to) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(to - from).put(buf, from, to - from);
+        return chunked(copy, InputStream.nullInputStream(), 0).readAllBytes();
+    }
+
+    // Number of bytes the chunked body starting at buf[from] takes up, trailers included, or -1
+    // if it does not end before limit.
+    public static int chunkedLength(byte[] buf, int from, int limit) throws IOException {
+        return new ChunkScanner(from).scan(buf, limit);
+    }
+
+    // Finds the end of a chunked body that arrives a piece at a time. Each scan() picks up where
+    // the last one stopped, so every byte is looked at once however often the body is checked,
+    // and the decoded length is known as soon as each chunk size line is in.
+    public static final class ChunkScanner {
+
+        private final int from;
+        // start of the next line to scan
+        private int pos;
+        // end of the data and CRLF of the current chunk, or -1 while a size line is expected
+        private long dataEnd = -1;
+        private boolean inTrailers = false;
+        private long decodedLength = 0;
+
+        public ChunkScanner(int from) {
+            this.from = from;
+            this.pos = from;
+        }
+
+        // Scans buf up to limit. Returns the number of bytes the body takes up, trailers
+        // included, once it ends before limit, or -1 if more has to be read first.
+        public int scan(byte[] buf, int limit) throws IOException {
+            while (true) {
+                if (dataEnd >= 0) {
+                    if (limit < dataEnd) {
+                        return -1;
+                    }
+                    pos = (int) dataEnd;
+                    dataEnd = -1;
+                }
+                int lineEnd = indexOfLf(buf, pos, limit);
+                if (lineEnd < 0) {
+                    if (limit - pos > MAX_LINE_LENGTH) {
+                        throw new IOException("Chunk line too long");
+                    }
+                    return -1;
+                }
+                if (inTrailers) {
+                    // trailer fields up to the empty line
+                    boolean empty = lineEnd == pos || lineEnd == pos + 1 && buf[pos] == '\r';
+                    pos = lineEnd + 1;
+                    if (empty) {
+                        return pos - from;
+                    }
+                    continue;
+                }
+                long size = parseChunkSize(buf, pos, lineEnd);
+                pos = lineEnd + 1;
+                if (size == 0) {
+                    inTrailers = true;
+                    continue;
+                }
+                decodedLength += size;
+                // chunk data and its CRLF
+                dataEnd = pos + size + 2;
+            }
+        }
+
+        // Bytes of data announced by the chunk size lines scanned so far.
+        public long decodedLength() {
+            return decodedLength;
+        }
+
+        // Bytes of the body scanned so far, framing included.
+        public long scannedLength() {
+            return pos - from;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (awaitingContinue != null) {
+            awaitingContinue.write(CONTINUE);
+            awaitingContinue.flush();
+            awaitingContinue = null;
+        }
+        if (remaining == 0 && !done) {
+            nextChunk();
+        }
+        if (done) {
+            return -1;
+        }
+        int n = (int) Math.min(len, remaining);
+        if (buffer.position() > 0) {
+            n = Math.min(n, buffer.position());
+            System.arraycopy(buffer.array(), 0, b, off, n);
+            RequestParser.consume(buffer, n);
+        } else {
+            n = in.read(b, off, n);
+            if (n < 0) {
+                throw new EOFException("Stream closed before end of body");
+            }
+        }
+        remaining -= n;
+        if (remaining == 0 && !chunked) {
+            done = true;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return done ? 0 : (int) Math.min(remaining, buffer.position());
+    }
+
+    // Reads and drops the rest of the body, unless more than limit bytes of it are left or the
+    // client was never told to send it. Returns whether the body was read to its end; if not, the
+    // connection cannot be reused.
+    public boolean skipRemaining(long limit) throws IOException {
+        if (continueRefused || !chunked && remaining > limit) {
+            return done;
+        }
+        byte[] scratch = new byte[(int) Math.min(8 * 1024, Math.max(limit, 1))];
+        long skipped = 0;
+        while (!done && skipped <= limit) {
+            int n = read(scratch, 0, scratch.length);
+            if (n > 0) {
+                skipped += n;
+            }
+        }
+        return done;
+    }
+
+    // The connection buffer, holding whatever was read past the end of the body.
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // Moves on to the next chunk: the CRLF after the previous chunk's data, the next size line,
+    // and after the last chunk the trailer section.
+    private void nextChunk() throws IOException {
+        if (started && readLine() != 0) {
+            throw new IOException("Missing CRLF after chunk data");
+        }
+        started = true;
+        int lineLength = readLine();
+        long size = parseChunkSize(buffer.array(), 0, lineLength);
+        RequestParser.consume(buffer, lineLength + 1);
+        decodedLength += size;
+        if (maxLength > 0 && decodedLength > maxLength) {
+            throw new TooLargeException("Chunked body exceeds " + maxLength + " bytes");
+        }
+        if (size > 0) {
+            remaining = size;
+            return;
+        }
+        int trailerLength;
+        while ((trailerLength = readLine()) > 0) {
+            RequestParser.consume(buffer, trailerLength + 1);
+        }
+        done = true;
+    }
+
+    // Reads until the buffer starts with a complete line, and returns the offset of its LF. An
+    // empty line (only CRLF) is consumed right away and reported as 0.
+    private int readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            int lf = indexOfLf(buffer.array(), scanned, buffer.position());
+            if (lf >= 0) {
+                if (lf == 0 || lf == 1 && buffer.array()[0] == '\r') {
+                    RequestParser.consume(buffer, lf + 1);
+                    return 0;
+                }
+                return lf;
+            }
+            scanned = buffer.position();
+            if (scanned >= MAX_LINE_LENGTH) {
+                throw new IOException("Chunk size or trailer line exceeds " + MAX_LINE_LENGTH
+                    + " bytes");
+            }
+            buffer = RequestParser.ensureCapacity(buffer, scanned + 1);
+            int read = in.read(buffer.array(), scanned, buffer.capacity() - scanned);
+            if (read < 0) {
+                throw new EOFException("Stream closed before end of chunked body");
+            }
+            buffer.position(scanned + read);
+        }
+    }
+
+    private static int indexOfLf(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The hex size at the start of a chunk size line ending at buf[end]; extensions after ';' are
+    // ignored.
+    private static long parseChunkSize(byte[] buf, int start, int end) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(buf[i], 16);
+            if (digit < 0) {
+                if (buf[i] == ';' || buf[i] == '\r' || buf[i] == ' ' || buf[i] == '\t') {
+                    break;
+                }
+                throw new IOException("Invalid chunk size");
+            }
+            if (++digits > 15) {
+                throw new IOException("Chunk size too large");
+            }
+            size = size * 16 + digit;
+        }
+        if (digits == 0) {
+            throw new IOException("Invalid chunk size");
+        }
+        return size;
+    }
+}
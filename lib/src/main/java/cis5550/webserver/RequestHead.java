@@ -0,0 +1,221 @@
+package cis5550.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// A request line and headers as found by RequestParser: the raw bytes plus offsets. Strings are
+// only decoded when asked for, and header lookups compare bytes in place.
+public final class RequestHead {
+
+    private static final Request.Method[] METHODS = Request.Method.values();
+    private static final HTTPMessage.HTTPVersion[] VERSIONS = HTTPMessage.HTTPVersion.values();
+    private final byte[] bytes;
+    private final int methodEnd;
+    private final int targetStart;
+    private final int targetEnd;
+    private final int versionStart;
+    private final int versionEnd;
+    // nameStart, nameEnd, valueStart, valueEnd for each header line
+    private final int[] fields;
+    private final int fieldCount;
+    private final boolean malformed;
+    private final String[] values;
+    private Headers headers;
+    private volatile boolean bodyTooLarge = false;
+
+    RequestHead(byte[] bytes, int methodEnd, int targetStart, int targetEnd, int versionStart,
+        int versionEnd, int[] fields, int fieldCount, boolean malformed) {
+        this.bytes = bytes;
+        this.methodEnd = methodEnd;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.versionStart = versionStart;
+        this.versionEnd = versionEnd;
+        this.fields = fields;
+        this.fieldCount = fieldCount;
+        this.malformed = malformed;
+        this.values = new String[fieldCount];
+    }
+
+    // Number of bytes the head occupied in the connection buffer, including the empty line.
+    public int length() {
+        return bytes.length;
+    }
+
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    // Set by a transport that turned the body away as too large without reading it; the request
+    // is then answered with 413.
+    public void markBodyTooLarge() {
+        bodyTooLarge = true;
+    }
+
+    public boolean isBodyTooLarge() {
+        return bodyTooLarge;
+    }
+
+    public String method() {
+        for (Request.Method m : METHODS) {
+            if (regionEquals(0, methodEnd, m.name(), false)) {
+                return m.name();
+            }
+        }
+        return decode(0, methodEnd);
+    }
+
+    public String target() {
+        return decode(targetStart, targetEnd);
+    }
+
+    public String version() {
+        for (HTTPMessage.HTTPVersion v : VERSIONS) {
+            if (regionEquals(versionStart, versionEnd, v.versionString, false)) {
+                return v.versionString;
+            }
+        }
+        return decode(versionStart, versionEnd);
+    }
+
+    public String requestLine() {
+        int end = 0;
+        while (bytes[end] != '\r') {
+            end++;
+        }
+        return decode(0, end);
+    }
+
+    // Value of the named header; repeated headers are joined with commas.
+    public String header(String name) {
+        String value = null;
+        for (int i = 0; i < fieldCount; i++) {
+            if (regionEquals(fields[4 * i], fields[4 * i + 1], name, true)) {
+                value = value == null ? value(i) : value + ',' + value(i);
+            }
+        }
+        return value;
+    }
+
+    public boolean hasHeader(String name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (regionEquals(fields[4 * i], fields[4 * i + 1], name, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the named header is present with the given value, ignoring case, without decoding.
+    public boolean headerEquals(String name, String value) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (regionEquals(fields[4 * i], fields[4 * i + 1], name, true)
+                && regionEquals(fields[4 * i + 2], fields[4 * i + 3], value, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parsed straight from the bytes: 0 if absent, -1 if not a valid non-negative number or if
+    // repeated with values that differ.
+    public long contentLength() {
+        long length = -1;
+        for (int i = 0; i < fieldCount; i++) {
+            if (!regionEquals(fields[4 * i], fields[4 * i + 1], "Content-Length", true)) {
+                continue;
+            }
+            int start = fields[4 * i + 2], end = fields[4 * i + 3];
+            if (start == end || end - start > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int j = start; j < end; j++) {
+                if (bytes[j] < '0' || bytes[j] > '9') {
+                    return -1;
+                }
+                value = value * 10 + (bytes[j] - '0');
+            }
+            if (length >= 0 && value != length) {
+                return -1;
+            }
+            length = value;
+        }
+        return Math.max(length, 0);
+    }
+
+    // Whether the body cannot be framed safely: a Content-Length that is invalid or ambiguous, or
+    // one next to Transfer-Encoding, which is how requests are smuggled past proxies. The
+    // transports hand such a request over without its body, to be answered with 400.
+    public boolean hasInvalidFraming() {
+        return hasHeader("Content-Length")
+            && (contentLength() < 0 || hasHeader("Transfer-Encoding"));
+    }
+
+    // Case-insensitive map view over the headers, for HTTPMessage.
+    public Map<String, String> headers() {
+        if (headers == null) {
+            headers = new Headers();
+        }
+        return headers;
+    }
+
+    private String value(int i) {
+        if (values[i] == null) {
+            values[i] = decode(fields[4 * i + 2], fields[4 * i + 3]);
+        }
+        return values[i];
+    }
+
+    private String decode(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean regionEquals(int start, int end, String s, boolean ignoreCase) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int a = bytes[start + i] & 0xFF, b = s.charAt(i);
+            if (a != b && (!ignoreCase || toLower(a) != toLower(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private final class Headers extends AbstractMap<String, String> {
+
+        private Map<String, String> decoded;
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String name ? header(name) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String name && hasHeader(name);
+        }
+
+        // Iteration is rare (Request.headers()), so it decodes everything once into a TreeMap.
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            if (decoded == null) {
+                decoded = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                for (int i = 0; i < fieldCount; i++) {
+                    decoded.merge(decode(fields[4 * i], fields[4 * i + 1]), value(i),
+                        (v1, v2) -> v1 + ',' + v2);
+                }
+            }
+            return decoded.entrySet();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package cis5550.webserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -22,16 +26,31 @@ public abstract class RequestImpl extends HTTPMessage implements Request {
     Map<String, String> params;
 
 
+    // bodyStream only hands out the body as the route reads it
+    private final InputStream bodyStream;
+    // from Content-Length, or -1 if the length is not known up front (chunked bodies)
+    private final long declaredLength;
+
     protected RequestImpl(Method method, String url, String protocol, Map<String, String> headers,
         Map<String, String> queryParams, Map<String, String> params, InetSocketAddress remoteAddr,
         byte[] bodyRaw) {
-        super(method.toString() + ' ' + url + ' ' + protocol, headers, bodyRaw);
+        this(method, url, protocol, headers, queryParams, params, remoteAddr,
+            new ByteArrayInputStream(bodyRaw), bodyRaw.length);
+        this.body = bodyRaw;
+    }
+
+    protected RequestImpl(Method method, String url, String protocol, Map<String, String> headers,
+        Map<String, String> queryParams, Map<String, String> params, InetSocketAddress remoteAddr,
+        InputStream bodyStream, long declaredLength) {
+        super(headers, null);
         this.method = method;
         this.url = url;
         this.remoteAddr = remoteAddr;
         this.protocol = protocol;
         this.queryParams = queryParams;
         this.params = params != null ? params : new HashMap<>();
+        this.bodyStream = bodyStream;
+        this.declaredLength = declaredLength;
     }
 
     private void parseCookies() {
@@ -88,19 +107,33 @@ public abstract class RequestImpl extends HTTPMessage implements Request {
     }
 
     public String body() {
-        return new String(body, StandardCharsets.UTF_8);
+        return new String(bodyAsBytes(), StandardCharsets.UTF_8);
     }
 
     public byte[] bodyAsBytes() {
+        if (body == null) {
+            try {
+                body = bodyStream.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return body;
     }
 
     public int contentLength() {
-        return body.length;
+        if (body == null && declaredLength >= 0) {
+            return (int) Math.min(declaredLength, Integer.MAX_VALUE);
+        }
+        return bodyAsBytes().length;
+    }
+
+    public InputStream bodyStream() {
+        return body != null ? new ByteArrayInputStream(body) : bodyStream;
     }
 
     public String headers(String name) {
-        return headers.get(name.toLowerCase());
+        return headers.get(name);
     }
 
     public Set<String> headers() {
@@ -0,0 +1,131 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Finds request heads in a connection's read buffer. The buffer is used in fill mode: the bytes
+// received so far are [0, position). Partial heads are scanned only once; the parser remembers how
+// far it got until consume() drops the request from the buffer.
+public final class RequestParser {
+
+    public static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int MAX_HEADERS = 128;
+    private int scanned = 0;
+
+    // Drops the first n bytes from a fill-mode buffer, keeping whatever follows them.
+    public static void consume(ByteBuffer buffer, int n) {
+        buffer.flip();
+        buffer.position(n);
+        buffer.compact();
+    }
+
+    // Returns a buffer with at least the given capacity holding the same content.
+    public static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    // Returns the head at the start of the buffer, or null if it is not complete yet.
+    public RequestHead parse(ByteBuffer buffer) throws IOException {
+        byte[] buf = buffer.array();
+        int limit = buffer.position();
+        int headEnd = -1;
+        for (int i = Math.max(scanned, 3); i < limit; i++) {
+            if (buf[i] == '\n' && buf[i - 3] == '\r' && buf[i - 2] == '\n' && buf[i - 1] == '\r') {
+                headEnd = i + 1;
+                break;
+            }
+        }
+        if (headEnd < 0) {
+            scanned = limit;
+            if (limit >= MAX_HEAD_SIZE) {
+                throw new IOException("Request head exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            return null;
+        }
+        scanned = 0;
+        return tokenize(buf, headEnd);
+    }
+
+    // Records where the request line parts and every header name and value start and end. The head
+    // is copied once so the request stays valid after the connection buffer has been reused.
+    private static RequestHead tokenize(byte[] buf, int headEnd) {
+        byte[] head = new byte[headEnd];
+        System.arraycopy(buf, 0, head, 0, headEnd);
+
+        int lineEnd = indexOfCrlf(head, 0);
+        int methodEnd = skipUntil(head, 0, lineEnd, true);
+        int targetStart = skipUntil(head, methodEnd, lineEnd, false);
+        int targetEnd = skipUntil(head, targetStart, lineEnd, true);
+        int versionStart = skipUntil(head, targetEnd, lineEnd, false);
+        int versionEnd = skipUntil(head, versionStart, lineEnd, true);
+        boolean malformed = methodEnd == 0 || targetStart == targetEnd
+            || versionStart == versionEnd || skipUntil(head, versionEnd, lineEnd, false) != lineEnd;
+
+        int[] fields = new int[16];
+        int count = 0;
+        int pos = lineEnd + 2;
+        while (pos < headEnd - 2 && !malformed) {
+            int end = indexOfCrlf(head, pos);
+            int colon = pos;
+            while (colon < end && head[colon] != ':') {
+                colon++;
+            }
+            // whitespace around the field name is not allowed, so "Content-Length : 5" is
+            // rejected rather than read as some other field (RFC 9112 5.1)
+            if (colon == end || colon == pos || isWhitespace(head[pos])
+                || isWhitespace(head[colon - 1]) || count >= MAX_HEADERS) {
+                malformed = true;
+                break;
+            }
+            int valueStart = colon + 1;
+            while (valueStart < end && isWhitespace(head[valueStart])) {
+                valueStart++;
+            }
+            int valueEnd = end;
+            while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) {
+                valueEnd--;
+            }
+            if (4 * count + 4 > fields.length) {
+                int[] grown = new int[fields.length * 2];
+                System.arraycopy(fields, 0, grown, 0, fields.length);
+                fields = grown;
+            }
+            fields[4 * count] = pos;
+            fields[4 * count + 1] = colon;
+            fields[4 * count + 2] = valueStart;
+            fields[4 * count + 3] = valueEnd;
+            count++;
+            pos = end + 2;
+        }
+        return new RequestHead(head, methodEnd, targetStart, targetEnd, versionStart, versionEnd,
+            fields, count, malformed);
+    }
+
+    private static int indexOfCrlf(byte[] buf, int from) {
+        int i = from;
+        while (buf[i] != '\r' || buf[i + 1] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    // Advances from start to the first byte that is (or, if untilWhitespace is false, is not)
+    // a space or tab, stopping at end.
+    private static int skipUntil(byte[] buf, int start, int end, boolean untilWhitespace) {
+        int i = start;
+        while (i < end && isWhitespace(buf[i]) != untilWhitespace) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
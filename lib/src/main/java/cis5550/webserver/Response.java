@@ -1,6 +1,8 @@
 package cis5550.webserver;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
 
 public interface Response {
 
@@ -21,6 +23,17 @@ public interface Response {
 
     void bodyAsBytes(byte[] bodyArg);
 
+    // Sends length bytes of file, starting at offset, as the body. The file is only opened when
+    // the response goes out (never for a HEAD request), so Content-Length is taken from length;
+    // where the connection allows it, the bytes go from the file to the socket without being
+    // copied through the Java heap. Like bodyAsBytes(), this replaces any earlier body.
+    void bodyAsFile(Path file, long offset, long length);
+
+    // Sends several ranges of file, each given as {offset, length}, as a multipart/byteranges
+    // body; every part carries contentType (unless it is null) and its Content-Range within the
+    // fileSize bytes of the file. Sets Content-Type to multipart/byteranges with the boundary.
+    void bodyAsFileRanges(Path file, String contentType, long fileSize, List<long[]> ranges);
+
     boolean isManualWrite();
 
     // This method adds a header. For instance, header("Cookie", "abc=def") should cause your
@@ -42,11 +55,17 @@ public interface Response {
     // This method can be used to send data directly to the connection, without buffering it
     // in an object in memory. The first time write() is called, it should 'commit' the
     // response by sending out the status code/reason phrase and any headers that have been
-    // set so far. Your server should 1) add a 'Connection: close' header, and it should
-    // 2) NOT add a Content-Length header in this case. Then, and in any subsequent calls,
-    // it should simply write the provided bytes directly to the connection.
+    // set so far, without a Content-Length header. Over HTTP/1.1 the body is then sent in the
+    // chunked transfer coding, with small writes coalesced into chunks (see
+    // Server.chunkBufferSize), and the connection stays open for the next request; only an
+    // HTTP/1.0 client gets 'Connection: close' and the raw bytes instead.
     void write(byte[] b) throws Exception;
 
+    // Adds a trailer field, sent after the body of a response that is streamed with write().
+    // Trailers set before the first write() are also announced in a Trailer header. Responses
+    // that are not streamed ignore them.
+    void trailer(String name, String value);
+
     // Your server should send back the following in the body of the response:
     //   * If write() has been called, ignore both the return value of Route.handle() and
     //     any calls to body() and bodyAsBytes().
@@ -72,23 +91,34 @@ public interface Response {
 
     class Status {
 
-        public static final Status OK = new Status(200, "OK");
-        public static final Status PARTIAL_CONTENT = new Status(206, "Partial Content");
-        public static final Status MULTIPLE_CHOICE = new Status(300, "Multiple Choice");
-        public static final Status MOVED_PERMANENTLY = new Status(301, "Moved Permanently");
-        public static final Status FOUND = new Status(302, "Found");
-        public static final Status SEE_OTHER = new Status(303, "See Other");
-        public static final Status NOT_MODIFIED = new Status(304, "Not Modified");
-        public static final Status TEMPORARY_REDIRECT = new Status(307, "Temporary Redirect");
-        public static final Status PERMANENT_REDIRECT = new Status(308, "Permanent Redirect");
-        public static final Status BAD_REQUEST = new Status(400, "Bad Request");
-        public static final Status FORBIDDEN = new Status(403, "Forbidden");
-        public static final Status NOT_FOUND = new Status(404, "Not Found");
-        public static final Status NOT_ALLOWED = new Status(405, "Not Allowed");
-        public static final Status RANGE_NOT_SATISFIABLE = new Status(416, "Range Not Satisfiable");
-        public static final Status INTERNAL_SERVER_ERROR = new Status(500, "Internal Server Error");
-        public static final Status NOT_IMPLEMENTED = new Status(501, "Not Implemented");
-        public static final Status HTTP_VERSION_NOT_SUPPORTED = new Status(505,
+        // the well-known statuses by code; has to be initialized before the constants below
+        private static final Status[] BY_CODE = new Status[600];
+        public static final Status CONTINUE = wellKnown(100, "Continue");
+        public static final Status OK = wellKnown(200, "OK");
+        public static final Status NO_CONTENT = wellKnown(204, "No Content");
+        public static final Status PARTIAL_CONTENT = wellKnown(206, "Partial Content");
+        public static final Status MULTIPLE_CHOICE = wellKnown(300, "Multiple Choice");
+        public static final Status MOVED_PERMANENTLY = wellKnown(301, "Moved Permanently");
+        public static final Status FOUND = wellKnown(302, "Found");
+        public static final Status SEE_OTHER = wellKnown(303, "See Other");
+        public static final Status NOT_MODIFIED = wellKnown(304, "Not Modified");
+        public static final Status TEMPORARY_REDIRECT = wellKnown(307, "Temporary Redirect");
+        public static final Status PERMANENT_REDIRECT = wellKnown(308, "Permanent Redirect");
+        public static final Status BAD_REQUEST = wellKnown(400, "Bad Request");
+        public static final Status UNAUTHORIZED = wellKnown(401, "Unauthorized");
+        public static final Status FORBIDDEN = wellKnown(403, "Forbidden");
+        public static final Status NOT_FOUND = wellKnown(404, "Not Found");
+        public static final Status NOT_ALLOWED = wellKnown(405, "Not Allowed");
+        public static final Status REQUEST_TIMEOUT = wellKnown(408, "Request Timeout");
+        public static final Status LENGTH_REQUIRED = wellKnown(411, "Length Required");
+        public static final Status PRECONDITION_FAILED = wellKnown(412, "Precondition Failed");
+        public static final Status CONTENT_TOO_LARGE = wellKnown(413, "Content Too Large");
+        public static final Status RANGE_NOT_SATISFIABLE = wellKnown(416, "Range Not Satisfiable");
+        public static final Status EXPECTATION_FAILED = wellKnown(417, "Expectation Failed");
+        public static final Status INTERNAL_SERVER_ERROR = wellKnown(500, "Internal Server Error");
+        public static final Status NOT_IMPLEMENTED = wellKnown(501, "Not Implemented");
+        public static final Status SERVICE_UNAVAILABLE = wellKnown(503, "Service Unavailable");
+        public static final Status HTTP_VERSION_NOT_SUPPORTED = wellKnown(505,
             "HTTP Version Not Supported");
         public final int code;
         public final String reason;
@@ -98,61 +128,29 @@ public interface Response {
             this.reason = reason;
         }
 
+        private static Status wellKnown(int code, String reason) {
+            return BY_CODE[code] = new Status(code, reason);
+        }
+
+        // The well-known status with this code. Other codes get a status with the generic reason
+        // phrase of their class, so a route can still answer with any code it likes.
         public static Status valueOf(int code) {
-            switch (code) {
-                case 200 -> {
-                    return OK;
-                }
-                case 206 -> {
-                    return PARTIAL_CONTENT;
-                }
-                case 300 -> {
-                    return MULTIPLE_CHOICE;
-                }
-                case 301 -> {
-                    return MOVED_PERMANENTLY;
-                }
-                case 302 -> {
-                    return FOUND;
-                }
-                case 303 -> {
-                    return SEE_OTHER;
-                }
-                case 304 -> {
-                    return NOT_MODIFIED;
-                }
-                case 307 -> {
-                    return TEMPORARY_REDIRECT;
-                }
-                case 308 -> {
-                    return PERMANENT_REDIRECT;
-                }
-                case 400 -> {
-                    return BAD_REQUEST;
-                }
-                case 403 -> {
-                    return FORBIDDEN;
-                }
-                case 404 -> {
-                    return NOT_FOUND;
-                }
-                case 405 -> {
-                    return NOT_ALLOWED;
-                }
-                case 416 -> {
-                    return RANGE_NOT_SATISFIABLE;
-                }
-                case 500 -> {
-                    return INTERNAL_SERVER_ERROR;
-                }
-                case 501 -> {
-                    return NOT_IMPLEMENTED;
-                }
-                case 505 -> {
-                    return HTTP_VERSION_NOT_SUPPORTED;
-                }
+            Status status = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            if (status != null) {
+                return status;
             }
-            return null;
+            return new Status(code, switch (code / 100) {
+                case 1 -> "Informational";
+                case 2 -> "Success";
+                case 3 -> "Redirection";
+                case 4 -> "Client Error";
+                default -> "Server Error";
+            });
+        }
+
+        // Whether this is one of the constants above, whose encoding can be cached.
+        public boolean isWellKnown() {
+            return code >= 0 && code < BY_CODE.length && BY_CODE[code] == this;
         }
 
         @Override
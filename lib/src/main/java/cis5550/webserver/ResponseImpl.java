@@ -1,12 +1,34 @@
 package cis5550.webserver;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 abstract public class ResponseImpl extends HTTPMessage implements Response {
 
+    // piece size for file bodies that cannot be sent with transferTo
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    // separates the parts of multipart/byteranges bodies; random, so no file contains it
+    private static final String BYTERANGES_BOUNDARY = UUID.randomUUID().toString();
+    private static final byte[] NO_BYTES = new byte[0];
+
     public final HTTPVersion version;
     protected Status status;
     protected boolean manualWrite = false;
+    protected final Map<String, String> trailers = new LinkedHashMap<>();
+    // set by bodyAsFile() and bodyAsFileRanges() in place of body: the segments of bodyFile go
+    // out in order, followed by bodyFileTail; bodyFileLength counts all of it
+    protected Path bodyFile;
+    protected List<FileSegment> bodyFileSegments;
+    protected byte[] bodyFileTail;
+    protected long bodyFileLength;
     private boolean halted;
 
     public ResponseImpl(HTTPVersion version, Status status, Map<String, String> headers, byte[] body) {
@@ -20,6 +42,11 @@ abstract public class ResponseImpl extends HTTPMessage implements Response {
         return this.version.versionString + ' ' + this.status;
     }
 
+    @Override
+    protected byte[] encodedInitialLine() {
+        return HeaderCache.statusLine(version, status);
+    }
+
     @Override
     public void bodyAsBytes(byte[] bodyArg) {
         if (!isManualWrite() && !isHalted()) {
@@ -27,6 +54,111 @@ abstract public class ResponseImpl extends HTTPMessage implements Response {
         }
     }
 
+    @Override
+    public void bodyAsFile(Path file, long offset, long length) {
+        setFileBody(file, List.of(new FileSegment(NO_BYTES, offset, length)), NO_BYTES);
+    }
+
+    @Override
+    public void bodyAsFileRanges(Path file, String contentType, long fileSize,
+        List<long[]> ranges) {
+        List<FileSegment> segments = new ArrayList<>(ranges.size());
+        for (long[] range : ranges) {
+            String head = "\r\n--" + BYTERANGES_BOUNDARY + "\r\n"
+                + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                + "Content-Range: bytes " + range[0] + "-" + (range[0] + range[1] - 1) + "/"
+                + fileSize + "\r\n\r\n";
+            segments.add(new FileSegment(head.getBytes(StandardCharsets.UTF_8), range[0],
+                range[1]));
+        }
+        if (setFileBody(file, segments, ("\r\n--" + BYTERANGES_BOUNDARY + "--\r\n")
+            .getBytes(StandardCharsets.US_ASCII))) {
+            this.headers.put("Content-Type", "multipart/byteranges; boundary="
+                + BYTERANGES_BOUNDARY);
+        }
+    }
+
+    private boolean setFileBody(Path file, List<FileSegment> segments, byte[] tail) {
+        if (isManualWrite() || isHalted()) {
+            return false;
+        }
+        long length = tail.length;
+        for (FileSegment segment : segments) {
+            length += segment.head.length + segment.length;
+        }
+        this.body = null;
+        this.bodyFile = file;
+        this.bodyFileSegments = segments;
+        this.bodyFileTail = tail;
+        this.bodyFileLength = length;
+        this.headers.put("Content-Length", String.valueOf(length));
+        return true;
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        super.setBody(body);
+        this.bodyFile = null;
+    }
+
+    // 1xx, 204 and 304 responses end with their headers, and carry no Content-Length either: a
+    // 304 would otherwise announce a length of 0 for the representation it stands for.
+    protected boolean isBodyless() {
+        return status.code < 200 || status.code == 204 || status.code == 304;
+    }
+
+    // A range of the file body, sent after head (a part header of a multipart body, else empty).
+    protected static final class FileSegment {
+
+        public final byte[] head;
+        public final long offset;
+        public final long length;
+
+        FileSegment(byte[] head, long offset, long length) {
+            this.head = head;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // Receives the pieces of a file body; the array is reused for the next piece.
+    protected interface FileChunkSink {
+
+        void accept(byte[] chunk, int length, boolean last) throws IOException;
+    }
+
+    // Reads the file body (the open bodyFile) in pieces of FILE_CHUNK_SIZE and hands them to
+    // sink, part headers and tail included, for connections that cannot take the file with
+    // transferTo; no more than one piece is in memory at a time. Every read is positional, so a
+    // range costs what it covers and no more.
+    protected void readFileBody(FileChannel file, FileChunkSink sink) throws IOException {
+        long remaining = bodyFileLength;
+        byte[] chunk = new byte[(int) Math.min(FILE_CHUNK_SIZE, Math.max(remaining, 1))];
+        for (FileSegment segment : bodyFileSegments) {
+            if (segment.head.length > 0) {
+                remaining -= segment.head.length;
+                sink.accept(segment.head, segment.head.length, remaining == 0);
+            }
+            long offset = segment.offset;
+            long end = offset + segment.length;
+            while (offset < end) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length,
+                    end - offset));
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("File shrank while being sent");
+                    }
+                }
+                offset += buffer.position();
+                remaining -= buffer.position();
+                sink.accept(chunk, buffer.position(), remaining == 0);
+            }
+        }
+        if (bodyFileTail.length > 0) {
+            sink.accept(bodyFileTail, bodyFileTail.length, true);
+        }
+    }
+
     public boolean isManualWrite() {
         return manualWrite;
     }
@@ -41,6 +173,16 @@ abstract public class ResponseImpl extends HTTPMessage implements Response {
         this.headers.put(name, value);
     }
 
+    @Override
+    public void trailer(String name, String value) {
+        this.trailers.put(name, value);
+    }
+
+    // Whether the response body can only be ended by closing the connection.
+    public boolean endsConnection() {
+        return manualWrite;
+    }
+
     @Override
     public void status(int statusCode, String reasonPhrase) {
         this.status = new Status(statusCode, reasonPhrase);
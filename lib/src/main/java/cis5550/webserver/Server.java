@@ -1,25 +1,43 @@
 package cis5550.webserver;
 
 import cis5550.tools.Logger;
+import cis5550.tools.SNIInspector;
 import cis5550.webserver.HTTPMessage.HTTPVersion;
 import cis5550.webserver.Request.Method;
 import cis5550.webserver.Response.Status;
+import cis5550.webserver.model.OpenFileCache;
 import cis5550.webserver.model.RouteTable;
 import cis5550.webserver.model.Session;
+import cis5550.webserver.model.StaticFileCache;
 import cis5550.webserver.model.StaticFileRequestHandler;
-import java.io.BufferedInputStream;
+import cis5550.webserver.http2.Http2Connection;
+import cis5550.webserver.http2.Http2Stream;
+import cis5550.webserver.transport.AcceptorShard;
+import cis5550.webserver.transport.AdmissionController;
+import cis5550.webserver.transport.ChannelOutputStream;
+import cis5550.webserver.transport.ConnectionManager;
+import cis5550.webserver.transport.GatheringOutput;
+import cis5550.webserver.transport.HostCertificates;
+import cis5550.webserver.transport.ListenerHandoff;
+import cis5550.webserver.transport.NioTransport;
+import cis5550.webserver.transport.TlsContext;
+import cis5550.webserver.transport.TlsPassthrough;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -32,42 +50,102 @@ import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import javax.net.ServerSocketFactory;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 
 public class Server implements AutoCloseable {
 
     private static final int NUM_WORKERS = 100;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final long QUEUE_DELAY_INTERVAL_MILLIS = 100;
+    private static final byte[] H2C_SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+        + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    // unread body bytes skipped to get to the next request; past this the connection is closed
+    private static final long MAX_BODY_DRAIN = 256 * 1024;
+    // bodies the server holds in memory itself (forms, h2c upgrades) without a configured limit
+    private static final long MAX_BUFFERED_BODY = 16 * 1024 * 1024;
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    // per worker thread; heads that do not fit fall back to getHead()
+    private static final ThreadLocal<ByteBuffer> HEAD_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
     private static final Logger logger = Logger.getLogger(Server.class);
     private static final Map<String, Map<Method, RouteTable>> hostMethodRouteTables = new HashMap<>();
     private static Server serverInstance;
     private static int portConfig = 80;
     private static int securePortConfig = 443;
+    private static Transport transportConfig = Transport.BLOCKING;
+    private static int eventLoopsConfig = Runtime.getRuntime().availableProcessors();
+    private static int acceptorsConfig = 1;
+    private static ExecutionMode executionModeConfig = ExecutionMode.THREAD_POOL;
+    private static long idleTimeoutConfig = 30_000;
+    private static long headerTimeoutConfig = 10_000;
+    private static long maxConnectionLifetimeConfig = 10 * 60_000;
+    private static int maxRequestsPerConnectionConfig = 10_000;
+    private static int maxConnectionsConfig = 10_000;
+    private static int maxConcurrentConnectionsConfig = 0;
+    private static int dispatchQueueCapacityConfig = 10 * NUM_WORKERS;
+    private static long queueDelayTargetConfig = 5;
+    private static int chunkBufferSizeConfig = 8 * 1024;
+    private static long staticFileCacheSizeConfig = 64 * 1024 * 1024;
+    private static long staticFileCacheMaxFileSizeConfig = 1024 * 1024;
+    private static int staticFileIndexSizeConfig = 100_000;
+    private static int staticFileNegativeCacheSizeConfig = 10_000;
+    private static int staticFileOpenFilesConfig = 1024;
+    private static long staticFileOpenFileIdleConfig = 30_000;
+    private static String staticFileCacheControlConfig = "no-cache";
+    private static boolean staticFileContentHashETagsConfig = false;
+    private static long maxRequestBodySizeConfig = 0;
+    private static long shutdownTimeoutConfig = 30_000;
+    private static Path hotRestartConfig = null;
+    private static Transport secureTransportConfig = Transport.BLOCKING;
+    private static String keyStoreConfig = "keystore.jks";
+    private static String keyStorePasswordConfig = "secret";
+    private static int tlsSessionCacheSizeConfig = 20_480;
+    private static int tlsSessionTimeoutConfig = 86_400;
+    private static boolean tlsSessionTicketsConfig = true;
+    private static int tlsHandshakeThreadsConfig = Runtime.getRuntime().availableProcessors();
     private static String host = null;
+    private static final HostCertificates hostCertificates =
+        new HostCertificates(Server::createSslContext);
+    private static final TlsPassthrough tlsPassthrough = new TlsPassthrough();
     private static Route staticRoute = Route.returnStatus(Status.NOT_FOUND);
+    // null while no static files are served
+    private static StaticFileRequestHandler staticFileHandler;
     private static Function<Route, Route> runBefore = rt -> (req, res) -> res.isHalted() ? null
         : rt.handle(req, res);
     private static Function<Route, Route> runAfter = Function.identity();
-    private final Executor threadPool = new ScheduledThreadPoolExecutor(16) {{
-        setMaximumPoolSize(NUM_WORKERS);
-    }};
-    private final byte[] CLRF = {13, 10};
+    private final Executor threadPool;
+    private final ConnectionManager connectionManager;
+    private final AdmissionController admission;
     private int port = portConfig;
     private int securePort = securePortConfig;
-    private ServerSocket ssock;
+    private final List<AcceptorShard> acceptors = new ArrayList<>();
     private ServerSocket secureSsock;
+    private NioTransport nioTransport;
+    private NioTransport secureNioTransport;
+    private ExecutorService tlsHandshakePool;
+    private ListenerHandoff handoff;
     private final Map<String, cis5550.webserver.Session> sessions = new ConcurrentHashMap<>();
-    private final Executor sessionCleanupPool = new ScheduledThreadPoolExecutor(1) {{
+    private final ScheduledThreadPoolExecutor sessionCleanupPool =
+        new ScheduledThreadPoolExecutor(1) {{
         setMaximumPoolSize(8);
         scheduleAtFixedRate(() -> sessions.values().removeIf(v -> !v.isValid()), 30, 30,
             TimeUnit.SECONDS);
@@ -76,6 +154,34 @@ public class Server implements AutoCloseable {
     private Server(int port, int securePort) {
         this.port = port;
         this.securePort = securePort;
+        this.threadPool = createWorkerPool(executionModeConfig, NUM_WORKERS,
+            dispatchQueueCapacityConfig);
+        this.admission = new AdmissionController(maxConcurrentConnectionsConfig,
+            queueDelayTargetConfig, QUEUE_DELAY_INTERVAL_MILLIS);
+        this.connectionManager = new ConnectionManager(idleTimeoutConfig, headerTimeoutConfig,
+            maxConnectionLifetimeConfig, maxRequestsPerConnectionConfig, maxConnectionsConfig);
+    }
+
+    private static Executor createWorkerPool(ExecutionMode executionMode, int workers,
+        int queueCapacity) {
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+            try {
+                // looked up reflectively so the server still builds and runs on Java 17
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not available on this JVM, "
+                    + "falling back to one platform thread per connection");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        // core size == max size: a pool only grows past its core size once the queue is full,
+        // and a full queue is exactly when work should be turned away instead
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60,
+            TimeUnit.SECONDS, queueCapacity > 0 ? new LinkedBlockingQueue<>(queueCapacity)
+            : new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     public static void before(Filter ft) {
@@ -132,8 +238,32 @@ public class Server implements AutoCloseable {
         throws IOException, UnrecoverableKeyException, CertificateException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
         Server instance = getInstance();
         instance.start();
-        new Thread(() -> instance.listen(instance.ssock)).start();
-        new Thread(() -> instance.listen(instance.secureSsock)).start();
+        for (AcceptorShard shard : instance.acceptors) {
+            new Thread(() -> instance.listen(shard), "acceptor-" + shard.name()).start();
+        }
+        if (instance.nioTransport != null) {
+            instance.nioTransport.start();
+        }
+        if (instance.secureNioTransport != null) {
+            instance.secureNioTransport.start();
+        }
+        if (hotRestartConfig != null) {
+            instance.handoff = ListenerHandoff.takeOver(hotRestartConfig,
+                new ListenerHandoff.Handover() {
+                    @Override
+                    public void stopAccepting() throws IOException {
+                        instance.stopAccepting();
+                    }
+
+                    @Override
+                    public void drain() throws IOException {
+                        instance.close();
+                        if (serverInstance == instance) {
+                            serverInstance = null;
+                        }
+                    }
+                });
+        }
     }
 
     private static Server getInstance() {
@@ -147,9 +277,23 @@ public class Server implements AutoCloseable {
         Server.host = host;
     }
 
+    // Like host(host), and HTTPS connections asking for this host through SNI get the certificate
+    // from keyStore instead of the default one. The key store is picked up again when the file
+    // changes.
     public static void host(String host, String keyStore, String pass) {
-        // TODO
         Server.host = host;
+        try {
+            hostCertificates.add(host, keyStore, pass);
+        } catch (IOException | GeneralSecurityException e) {
+            logger.error("Could not load key store " + keyStore + " for " + host, e);
+        }
+    }
+
+    // HTTPS connections asking for host through SNI are relayed, still encrypted, to backend
+    // ("host:port"), which terminates TLS itself. "*.example.com" covers the names one level
+    // below. Only the blocking HTTPS transport relays; see TlsPassthrough.
+    public static void tlsPassthrough(String host, String backend) {
+        tlsPassthrough.add(host, backend);
     }
 
     public static void post(String pattern, Route route) throws Exception {
@@ -175,7 +319,208 @@ public class Server implements AutoCloseable {
         securePortConfig = port;
     }
 
-    private static void stop() throws IOException {
+    // Selects how the plain HTTP port accepts and reads connections; has to be called before the
+    // first route is registered.
+    public static void transport(Transport transport) {
+        transportConfig = transport;
+    }
+
+    // Number of listening sockets the blocking transport opens on the plain port. With more than
+    // one, they share the port through SO_REUSEPORT and each has its own acceptor thread and its
+    // own slice of the worker pool. Has to be called before the first route is registered.
+    public static void acceptors(int acceptors) {
+        acceptorsConfig = acceptors;
+    }
+
+    // Accept counters and rates of every listening socket, for checking how the kernel spreads
+    // connections across the shards.
+    public static List<AcceptorShard> acceptorShards() {
+        return serverInstance != null ? List.copyOf(serverInstance.acceptors) : List.of();
+    }
+
+    // Selects how the HTTPS port accepts and reads connections. NIO runs TLS on SSLEngine inside
+    // the event loops and speaks HTTP/1.1 only; HTTP/2 needs the blocking transport. Has to be
+    // called before the first route is registered.
+    public static void secureTransport(Transport transport) {
+        secureTransportConfig = transport;
+    }
+
+    // Key store (JKS) holding the certificate of the HTTPS port.
+    public static void keyStore(String path, String password) {
+        keyStoreConfig = path;
+        keyStorePasswordConfig = password;
+    }
+
+    // Number of TLS sessions kept for resumption; a returning client whose session is still
+    // cached skips the full handshake. 0 means no limit.
+    public static void tlsSessionCacheSize(int sessions) {
+        tlsSessionCacheSizeConfig = sessions;
+    }
+
+    // How long a TLS session (or a session ticket) can be resumed, in seconds.
+    public static void tlsSessionTimeout(int seconds) {
+        tlsSessionTimeoutConfig = seconds;
+    }
+
+    // Whether the server hands out session tickets (RFC 5077, and their TLS 1.3 counterpart), so
+    // that clients can resume without the session being held in the cache. The JDK reads this
+    // once per process, so it has to be set before the first route is registered.
+    public static void tlsSessionTickets(boolean enabled) {
+        tlsSessionTicketsConfig = enabled;
+    }
+
+    // Threads running the expensive steps of TLS handshakes for the NIO transport, off the event
+    // loops. Defaults to one per core.
+    public static void tlsHandshakeThreads(int threads) {
+        tlsHandshakeThreadsConfig = threads;
+    }
+
+    // Number of selector threads used by the NIO transport. Defaults to one per core.
+    public static void eventLoops(int eventLoops) {
+        eventLoopsConfig = eventLoops;
+    }
+
+    // Selects what runs the (blocking) request handling; has to be called before the first route
+    // is registered.
+    public static void executionMode(ExecutionMode executionMode) {
+        executionModeConfig = executionMode;
+    }
+
+    // How long a keep-alive connection may wait for its next request, in milliseconds.
+    public static void idleTimeout(long millis) {
+        idleTimeoutConfig = millis;
+    }
+
+    // How long the head and body of a request may take to arrive once it has started, in
+    // milliseconds; this is what gets rid of slow and half-open clients.
+    public static void headerTimeout(long millis) {
+        headerTimeoutConfig = millis;
+    }
+
+    // After this many milliseconds a connection is closed once its current request is done.
+    public static void maxConnectionLifetime(long millis) {
+        maxConnectionLifetimeConfig = millis;
+    }
+
+    // Size of the chunks that small Response.write() calls are coalesced into; each chunk is
+    // flushed to the client as soon as it is full. 0 sends every write() as a chunk right away.
+    public static void chunkBufferSize(int bytes) {
+        chunkBufferSizeConfig = bytes;
+    }
+
+    // Memory for the contents of small static files, which are then served without touching the
+    // file system until they change; files above maxFileSize are always sent from disk. 0
+    // turns the cache off. Has to be called before staticFiles.location().
+    public static void staticFileCacheSize(long maxBytes, long maxFileSize) {
+        staticFileCacheSizeConfig = maxBytes;
+        staticFileCacheMaxFileSizeConfig = maxFileSize;
+    }
+
+    // Files and directories of the static tree whose metadata is kept in memory, so that whether
+    // a path exists (and its size, type and dates) is known without a system call. A tree with
+    // more entries is indexed in part, and the paths found missing on disk are remembered, up to
+    // maxMisses of them, so that repeated 404s cost nothing either. 0 and 0 turn both off. Has to
+    // be called before staticFiles.location().
+    public static void staticFileIndexSize(int maxEntries, int maxMisses) {
+        staticFileIndexSizeConfig = maxEntries;
+        staticFileNegativeCacheSizeConfig = maxMisses;
+    }
+
+    // Static files kept open between responses, so that sending one again costs no open() and
+    // close(); a file is closed once it changes, or after idleMillis without a request. 0 opens
+    // every file per response. Has to be called before staticFiles.location().
+    public static void staticFileOpenFiles(int maxOpen, long idleMillis) {
+        staticFileOpenFilesConfig = maxOpen;
+        staticFileOpenFileIdleConfig = idleMillis;
+    }
+
+    // Cache-Control sent with static files; the default has clients revalidate every time, which
+    // costs a 304 and no body while the file is unchanged. null sends none. Has to be called
+    // before staticFiles.location().
+    public static void staticFileCacheControl(String value) {
+        staticFileCacheControlConfig = value;
+    }
+
+    // Tags cached static files by a hash of their contents rather than by size, modification
+    // time and inode, so that the tags stay the same across servers and redeployments. Has to be
+    // called before staticFiles.location().
+    public static void staticFileContentHashETags(boolean enabled) {
+        staticFileContentHashETagsConfig = enabled;
+    }
+
+    // Hit, miss and eviction counters of the static file cache; null if there is none.
+    public static StaticFileCache staticFileCache() {
+        return staticFileHandler != null ? staticFileHandler.cache() : null;
+    }
+
+    // Opens a file body; files below the static root come from the open file cache.
+    private static OpenFileCache.Handle openFile(Path file) throws IOException {
+        StaticFileCache cache = staticFileCache();
+        return cache != null ? cache.open(file) : OpenFileCache.Handle.uncached(file);
+    }
+
+    // Requests announcing a larger body get 413 before any of it is read; a chunked body, whose
+    // length is not known up front, gets 413 once the route has read past the limit. 0 means no
+    // limit, except for bodies held in memory whole: those of the NIO transport, forms and h2c
+    // upgrades are limited to 16 MB even at 0.
+    // An HTTP/2 request is also cut off with a 413 as soon as its body grows past the limit.
+    public static void maxRequestBodySize(long bytes) {
+        maxRequestBodySizeConfig = bytes;
+    }
+
+    public static void maxRequestsPerConnection(int maxRequests) {
+        maxRequestsPerConnectionConfig = maxRequests;
+    }
+
+    // Budget of open connections; past it the least recently active idle ones are closed. These
+    // limits have to be set before the first route is registered, 0 disables a limit.
+    public static void maxConnections(int maxConnections) {
+        maxConnectionsConfig = maxConnections;
+    }
+
+    // Connections served at once, counting those waiting for a worker; past it new connections
+    // get an immediate 503. 0 means no limit.
+    public static void maxConcurrentConnections(int maxConcurrent) {
+        maxConcurrentConnectionsConfig = maxConcurrent;
+    }
+
+    // Connections (requests, for the NIO transport) that may wait for a worker before the next
+    // one is answered with 503. 0 means unbounded.
+    public static void dispatchQueueCapacity(int capacity) {
+        dispatchQueueCapacityConfig = capacity;
+    }
+
+    // Target for the time work waits for a worker, in milliseconds. While waits stay above it
+    // for a whole interval, work that waited longer is shed with 503. 0 turns this off.
+    public static void queueDelayTarget(long millis) {
+        queueDelayTargetConfig = millis;
+    }
+
+    // How long a graceful stop waits for requests in flight before cutting off the connections
+    // that are still open, in milliseconds.
+    public static void shutdownTimeout(long millis) {
+        shutdownTimeoutConfig = millis;
+    }
+
+    // Zero-downtime restarts: the ports are bound with SO_REUSEPORT, and once a server started
+    // with the same control socket (a Unix domain socket at controlSocket) is listening on them,
+    // this one stops accepting and drains, as in stop(). Has to be called before the first route
+    // is registered, and the same way in both processes.
+    public static void hotRestart(String controlSocket) {
+        hotRestartConfig = Path.of(controlSocket);
+    }
+
+    // Open connections, for watching a drain.
+    public static int openConnections() {
+        return serverInstance != null ? serverInstance.connectionManager.size() : 0;
+    }
+
+    public static boolean isDraining() {
+        return serverInstance != null && serverInstance.connectionManager.isDraining();
+    }
+
+    // Stops the server gracefully (see close()); blocks until it is done.
+    public static void stop() throws IOException {
         if (isRunning()) {
             getInstance().close();
         }
@@ -183,42 +528,141 @@ public class Server implements AutoCloseable {
     }
 
 
+    // Graceful stop: stops accepting, lets every connection finish the request it is on (the
+    // response says "Connection: close", HTTP/2 clients get GOAWAY), closes idle ones, and after
+    // the shutdown timeout force-closes whatever is left.
     @Override
     public void close() throws IOException {
+        if (handoff != null) {
+            handoff.close();
+        }
+        stopAccepting();
+        long start = System.nanoTime();
+        connectionManager.drain();
+        try {
+            if (connectionManager.awaitDrained(shutdownTimeoutConfig)) {
+                logger.info("Drained all connections in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            } else {
+                logger.warn("Shutdown timeout of " + shutdownTimeoutConfig + "ms reached, closing "
+                    + connectionManager.closeAll("shutdown timeout reached")
+                    + " connection(s) that are still open");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connectionManager.closeAll("shutdown interrupted");
+        }
+        if (nioTransport != null) {
+            nioTransport.close();
+        }
+        connectionManager.close();
+        // nothing is left for the pools to run, and their threads would keep the process alive
+        if (secureNioTransport != null) {
+            secureNioTransport.close();
+        }
+        sessionCleanupPool.shutdownNow();
+        shutdownWorkers(threadPool);
+        shutdownWorkers(tlsHandshakePool);
+        for (AcceptorShard shard : acceptors) {
+            shutdownWorkers(shard.workers());
+        }
+    }
+
+    private static void shutdownWorkers(Executor workers) {
+        if (workers instanceof ExecutorService service) {
+            service.shutdown();
+        }
+    }
+
+    // Closes the listening sockets; connections already accepted are still served.
+    private void stopAccepting() throws IOException {
         if (_isRunning()) {
-            ssock.close();
+            for (AcceptorShard shard : acceptors) {
+                if (shard.socket() != secureSsock) {
+                    shard.socket().close();
+                }
+            }
+            if (nioTransport != null) {
+                nioTransport.stopAccepting();
+            }
         }
-        if (_isRunningSecure()) {
+        if (secureSsock != null && !secureSsock.isClosed()) {
             secureSsock.close();
         }
+        if (secureNioTransport != null && secureNioTransport.isOpen()) {
+            secureNioTransport.stopAccepting();
+        }
     }
 
     private boolean _isRunning() {
-        return ssock != null && !ssock.isClosed();
+        return acceptors.stream().anyMatch(shard -> shard.socket() != secureSsock
+            && !shard.socket().isClosed()) || nioTransport != null && nioTransport.isOpen();
     }
 
     private boolean _isRunningSecure() {
-        return secureSsock != null && !secureSsock.isClosed();
+        return secureSsock != null && !secureSsock.isClosed()
+            || secureNioTransport != null && secureNioTransport.isOpen();
     }
 
     private void start() throws IOException {
         if (_isRunning() || _isRunningSecure()) {
             throw new IllegalStateException("Server already started");
         }
-        this.ssock = new ServerSocket(this.port);
-        logger.info("Server Started on port " + this.port + "(HTTP)");
+        // a successor has to be able to bind the ports while this server still holds them
+        boolean reusePort = hotRestartConfig != null;
+        if (transportConfig == Transport.NIO) {
+            this.nioTransport = new NioTransport(this.port, reusePort, eventLoopsConfig, threadPool,
+                this::handleRequest, connectionManager, admission, maxRequestBodySizeConfig, null);
+            logger.info("Server Started on port " + this.port + "(HTTP, NIO)");
+        } else {
+            int shards = acceptorsConfig;
+            if (shards > 1 && !AcceptorShard.isReusePortSupported()) {
+                logger.warn("SO_REUSEPORT is not supported here, using a single acceptor");
+                shards = 1;
+            }
+            if (shards == 1) {
+                acceptors.add(new AcceptorShard("http", AcceptorShard.listen(this.port, reusePort),
+                    threadPool));
+            } else {
+                int workersPerShard = Math.max(NUM_WORKERS / shards, 1);
+                int boundPort = this.port;
+                for (int i = 0; i < shards; i++) {
+                    ServerSocket shardSocket = AcceptorShard.listen(boundPort, true);
+                    // port 0 picks a free port for the first shard, the others join it
+                    boundPort = shardSocket.getLocalPort();
+                    acceptors.add(new AcceptorShard("http-" + i, shardSocket,
+                        createWorkerPool(executionModeConfig, workersPerShard,
+                            dispatchQueueCapacityConfig / shards)));
+                }
+            }
+            logger.info("Server Started on port " + this.port + "(HTTP, " + shards
+                + " acceptor(s))");
+        }
 
         try {
-            String pwd = "secret";
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            keyStore.load(new FileInputStream("keystore.jks"), pwd.toCharArray());
-            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-            keyManagerFactory.init(keyStore, pwd.toCharArray());
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-            ServerSocketFactory factory = sslContext.getServerSocketFactory();
-            this.secureSsock = factory.createServerSocket(this.securePort);
-            logger.info("Server Started on port " + this.securePort + "(HTTPS)");
+            hostCertificates.setDefault(keyStoreConfig, keyStorePasswordConfig);
+            if (secureTransportConfig == Transport.NIO) {
+                tlsHandshakePool = Executors.newFixedThreadPool(tlsHandshakeThreadsConfig, r -> {
+                    Thread thread = new Thread(r, "tls-handshake");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                TlsContext tlsContext = new TlsContext(hostCertificates,
+                    new String[]{"http/1.1"}, tlsHandshakePool);
+                this.secureNioTransport = new NioTransport(this.securePort, reusePort,
+                    eventLoopsConfig, threadPool, this::handleRequest, connectionManager,
+                    admission, maxRequestBodySizeConfig, tlsContext);
+                logger.info("Server Started on port " + this.securePort + "(HTTPS, NIO)");
+                if (!tlsPassthrough.isEmpty()) {
+                    logger.warn("TLS passthrough needs the blocking HTTPS transport, "
+                        + "passthrough hosts get the default certificate");
+                }
+            } else {
+                // a plain socket: the handshake starts in startTls(), once the SNI name is known
+                this.secureSsock = AcceptorShard.listen(this.securePort, reusePort);
+                acceptors.add(new AcceptorShard("https", secureSsock, threadPool));
+                logger.info("Server Started on port " + this.securePort + "(HTTPS)");
+            }
         } catch (Exception e) {
             // just so it does not clog up console
             logger.warn("Could not start HTTPS server");
@@ -235,31 +679,61 @@ public class Server implements AutoCloseable {
         }));
     }
 
-    private void listen(ServerSocket ssock) {
-        this.listen(ssock, -1);
+    // The session settings are shared by both secure transports and every key store.
+    private static SSLContext createSslContext(String keyStorePath, String keyStorePassword)
+        throws IOException, GeneralSecurityException {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+            String.valueOf(tlsSessionTicketsConfig));
+        char[] password = keyStorePassword.toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(keyStorePath)) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        keyManagerFactory.init(keyStore, password);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(tlsSessionCacheSizeConfig);
+        sessions.setSessionTimeout(tlsSessionTimeoutConfig);
+        return sslContext;
     }
 
-    private void listen(ServerSocket ssock, int maxRetry) {
-
-        // https socket could be null if it throws an exception
-        if (ssock == null)
-            return;
+    private void listen(AcceptorShard shard) {
+        this.listen(shard, -1);
+    }
 
+    private void listen(AcceptorShard shard, int maxRetry) {
+        ServerSocket ssock = shard.socket();
+        boolean secure = ssock == secureSsock;
         logger.info("Listening on " + ssock.getInetAddress() + ":" + ssock.getLocalPort());
         int ex = 0;
         while (maxRetry < 0 || ex <= maxRetry) {
             try {
                 Socket sock = ssock.accept();
+                shard.onAccept();
                 String clientAddr = sock.getRemoteSocketAddress().toString();
                 logger.info("Incoming connection from " + clientAddr);
-                threadPool.execute(() -> {
+                if (!admission.tryAcquire()) {
+                    logger.info("Too many connections, turning away " + clientAddr);
+                    AdmissionController.reject(sock, secure);
+                    continue;
+                }
+                ConnectionManager.Connection connection = connectionManager.register(sock,
+                    sock.getRemoteSocketAddress());
+                admission.dispatch(shard.workers(), () -> {
                     try {
-                        handleRequests(sock);
+                        handleRequests(sock, secure, connection);
                     } catch (IOException e) {
-                        logger.error(e.getLocalizedMessage(), e);
+                        // a connection closed by the manager fails whatever read it was blocked in
+                        if (connection.closeReason() == null) {
+                            logger.error(e.getLocalizedMessage(), e);
+                        }
                     } catch (Exception e) {
                         logger.fatal(e.getLocalizedMessage(), e);
                     } finally {
+                        connection.unregister();
+                        admission.release();
                         try {
                             logger.info("Closing connection from " + sock.getRemoteSocketAddress());
                             sock.close();
@@ -267,8 +741,16 @@ public class Server implements AutoCloseable {
                             logger.fatal(e.getLocalizedMessage(), e);
                         }
                     }
+                }, () -> {
+                    logger.info("Overloaded, turning away " + clientAddr);
+                    connection.unregister();
+                    admission.release();
+                    AdmissionController.reject(sock, secure);
                 });
             } catch (IOException e) {
+                if (ssock.isClosed()) {
+                    break;
+                }
                 logger.error(e.getLocalizedMessage(), e);
                 ex++;
             } catch (Exception e) {
@@ -278,171 +760,539 @@ public class Server implements AutoCloseable {
         }
     }
 
-    private void handleRequests(Socket clientSocket) throws Exception {
+    // Reads the ClientHello to learn the SNI name. Returns null if the connection has been relayed
+    // to a passthrough backend; else carries on with the handshake using the certificate of that
+    // host, replaying the bytes read so far to the SSLSocket.
+    private static SSLSocket startTls(Socket socket, ConnectionManager.Connection connection)
+        throws IOException {
+        SNIInspector inspector = new SNIInspector();
+        try {
+            inspector.parseConnection(socket);
+        } catch (Exception e) {
+            throw new IOException("No TLS ClientHello from " + socket.getRemoteSocketAddress()
+                + ": " + e.getLocalizedMessage(), e);
+        }
+        SNIHostName name = inspector.getHostName();
+        String host = name != null ? name.getAsciiName() : null;
+        String backend = tlsPassthrough.backendFor(host);
+        if (backend != null) {
+            logger.info("Relaying " + host + " from " + socket.getRemoteSocketAddress() + " to "
+                + backend);
+            // exempt from the manager's timeouts; the relay enforces the idle timeout itself
+            connection.active();
+            TlsPassthrough.relay(socket.getChannel(), inspector.getInputStream().readAllBytes(),
+                backend, idleTimeoutConfig);
+            return null;
+        }
+        SSLContext context = hostCertificates.forHost(host);
+        SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(socket,
+            inspector.getInputStream(), true);
+        // offer HTTP/2 through ALPN, falling back to HTTP/1.1 for clients that don't ask
+        SSLParameters sslParameters = sslSocket.getSSLParameters();
+        sslParameters.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+        sslSocket.setSSLParameters(sslParameters);
+        return sslSocket;
+    }
+
+    private void handleRequests(Socket clientSocket, boolean secure,
+        ConnectionManager.Connection connection) throws Exception {
+        if (secure) {
+            clientSocket = startTls(clientSocket, connection);
+            if (clientSocket == null) {
+                return;
+            }
+        }
         boolean connectionOpen = true;
-        InputStream inputStream = new BufferedInputStream(clientSocket.getInputStream());
-        OutputStream outputStream = new BufferedOutputStream(clientSocket.getOutputStream());
+        InputStream inputStream = clientSocket.getInputStream();
+        // plain connections come from a channel and get gathering writes; TLS ones do not
+        OutputStream outputStream = !secure && clientSocket.getChannel() != null
+            ? new ChannelOutputStream(clientSocket.getChannel(), OUTPUT_BUFFER_SIZE)
+            : new BufferedOutputStream(clientSocket.getOutputStream());
+        InetSocketAddress remoteAddr = (InetSocketAddress) clientSocket.getRemoteSocketAddress();
+        if (clientSocket instanceof SSLSocket sslSocket) {
+            sslSocket.startHandshake();
+            if ("h2".equals(sslSocket.getApplicationProtocol())) {
+                new Http2Connection(inputStream, outputStream, remoteAddr, threadPool,
+                    this::handleStream, connection, maxRequestBodySizeConfig).serve();
+                return;
+            }
+        }
+        // reused for every request on this connection, holds whatever was read past the last one
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        RequestParser parser = new RequestParser();
         while (connectionOpen && !clientSocket.isInputShutdown()) {
-            String[] head = readHead(inputStream).split(new String(CLRF), 2);
+            RequestHead head;
+            while ((head = parser.parse(buffer)) == null) {
+                // Pipelined requests that were already buffered have been handled without
+                // flushing in between, so their responses go out together before blocking here.
+                outputStream.flush();
+                if (buffer.position() > 0) {
+                    connection.reading();
+                } else {
+                    connection.idle();
+                }
+                buffer = RequestParser.ensureCapacity(buffer, buffer.position() + 1);
+                int read = inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    if (buffer.position() > 0) {
+                        throw new IOException("Stream closed before end of header");
+                    }
+                    return;
+                }
+                buffer.position(buffer.position() + read);
+            }
+
+            RequestParser.consume(buffer, head.length());
+            RequestBody body;
+            if (head.hasInvalidFraming()) {
+                // where the body ends is anyone's guess; it gets a 400 and the connection closes
+                body = RequestBody.fixed(buffer, inputStream, 0);
+            } else if (head.headerEquals("Transfer-Encoding", "chunked")) {
+                body = RequestBody.chunked(buffer, inputStream, maxRequestBodySizeConfig);
+            } else {
+                body = RequestBody.fixed(buffer, inputStream, head.contentLength());
+            }
+            if (head.headerEquals("Expect", "100-continue")) {
+                body.expectContinue(outputStream);
+            }
 
-            logger.info(clientSocket.getRemoteSocketAddress() + ": " + head[0]);
-            String[] req = head[0].split("\\s+");
+            if (Http2Connection.isPreface(head)) {
+                // prior knowledge: the parser took the start of the connection preface for a head
+                InputStream rest = new SequenceInputStream(
+                    new ByteArrayInputStream(Http2Connection.PREFACE, 0, head.length()),
+                    remainder(buffer, inputStream));
+                new Http2Connection(rest, outputStream, remoteAddr, threadPool,
+                    this::handleStream, connection, maxRequestBodySizeConfig).serve();
+                return;
+            }
+            String http2Settings = head.header("HTTP2-Settings");
+            if (http2Settings != null && head.headerEquals("Upgrade", "h2c")
+                && !(clientSocket instanceof SSLSocket) && !head.hasInvalidFraming()) {
+                logger.info(remoteAddr + ": " + head.requestLine() + " (upgrading to h2c)");
+                // the upgraded request becomes stream 1, whose body has to be complete
+                byte[] upgradeBody = readBufferedBody(body);
+                buffer = body.buffer();
+                outputStream.write(H2C_SWITCHING_PROTOCOLS);
+                new Http2Connection(remainder(buffer, inputStream), outputStream, remoteAddr,
+                    threadPool, this::handleStream, connection, maxRequestBodySizeConfig)
+                    .serveUpgrade(http2Settings, head.method(), head.target(), head.headers(),
+                        upgradeBody);
+                return;
+            }
 
-            Map<String, String> headers = HTTPMessage.parseHeaders(head[1]);
+            connectionOpen = handleRequest(head, body, remoteAddr, outputStream,
+                connection.beginRequest());
 
-            byte[] body = inputStream.readNBytes(
-                Integer.parseInt(Objects.requireNonNullElse(headers.get("Content-Length"), "0")));
+            // the next request starts after the body, whether or not the route read all of it
+            if (connectionOpen && !body.skipRemaining(MAX_BODY_DRAIN)) {
+                logger.info(remoteAddr + ": closing instead of skipping an unread body");
+                outputStream.flush();
+                clientSocket.shutdownOutput();
+                return;
+            }
+            buffer = body.buffer();
+            connectionOpen = connectionOpen && !clientSocket.isClosed();
+        }
+        outputStream.flush();
+    }
 
-            Request request = null;
-            Route rt;
-            ResponseImpl response = new ResponseImpl(HTTPVersion.HTTP1_1, Status.OK, null, null) {
-                @Override
-                public void write(byte[] b) throws Exception {
-                    if (!isHalted()) {
-                        OutputStream outputStream = clientSocket.getOutputStream();
-                        if (!manualWrite) {
+    // Whatever was read past the last request, followed by the rest of the connection.
+    private static InputStream remainder(ByteBuffer buffer, InputStream inputStream) {
+        return new SequenceInputStream(
+            new ByteArrayInputStream(buffer.array(), 0, buffer.position()), inputStream);
+    }
+
+    private boolean handleRequest(RequestHead head, InputStream body, InetSocketAddress remoteAddr,
+        OutputStream outputStream, boolean keepAlive) throws Exception {
+        logger.info(remoteAddr + ": " + head.requestLine());
+
+        // HTTP/1.0 clients do not understand chunked bodies; a streamed body has to end with
+        // the connection for them
+        boolean chunkable = !"HTTP/1.0".equals(head.version());
+        RequestBody pendingContinue = body instanceof RequestBody requestBody ? requestBody : null;
+        ResponseImpl response = new ResponseImpl(HTTPVersion.HTTP1_1, Status.OK, null, null) {
+            private ChunkedOutput chunked;
+
+            @Override
+            public void write(byte[] b) throws Exception {
+                if (!isHalted()) {
+                    if (!manualWrite) {
+                        this.headers.remove("Content-Length");
+                        if (chunkable) {
+                            this.header("Transfer-Encoding", "chunked");
+                            if (!trailers.isEmpty()) {
+                                this.header("Trailer", String.join(", ", trailers.keySet()));
+                            }
+                            chunked = new ChunkedOutput(outputStream, chunkBufferSizeConfig);
+                        } else {
                             this.header("Connection", "close");
-                            this.headers.remove("Content-Length");
-                            writeHead();
                         }
-                        this.manualWrite = true;
+                        writeHead();
+                    }
+                    this.manualWrite = true;
+                    if (chunked != null) {
+                        chunked.write(b);
+                    } else {
                         outputStream.write(b);
+                        outputStream.flush();
                     }
                 }
+            }
 
-                @Override
-                public void commit(Object overrideBody) throws IOException {
-                    if (!isManualWrite()) {
-                        OutputStream outputStream = clientSocket.getOutputStream();
-                        if (overrideBody != null) {
-                            setBody(overrideBody.toString().getBytes(StandardCharsets.UTF_8));
-                        }
-                        if (body == null) {
-                            setBody(new byte[0]);
-                        }
-                        writeHead();
-                        outputStream.write(this.body);
+            @Override
+            public void commit(Object overrideBody) throws IOException {
+                if (chunked != null) {
+                    chunked.finish(trailers);
+                    chunked = null;
+                } else if (!isManualWrite()) {
+                    if (overrideBody != null) {
+                        setBody(overrideBody.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                    if (isBodyless()) {
+                        setBody(new byte[0]);
+                        headers.remove("Content-Length");
+                    }
+                    if (bodyFile != null) {
+                        writeFileResponse();
+                        return;
+                    }
+                    if (body == null) {
+                        setBody(new byte[0]);
+                    }
+                    writeResponse(this.body);
+                }
+            }
+
+            @Override
+            public boolean endsConnection() {
+                return manualWrite && !chunkable;
+            }
+
+            public void writeHead() throws IOException {
+                if (!isManualWrite()) {
+                    writeResponse(null);
+                }
+            }
+
+            // Head and body go out together, the head serialized into a pooled buffer rather
+            // than through a String, and the body handed over without another copy.
+            private void writeResponse(byte[] body) throws IOException {
+                prepareHead();
+                if (outputStream instanceof GatheringOutput gathering) {
+                    ByteBuffer headBuffer = HEAD_BUFFER.get().clear();
+                    if (writeHead(headBuffer)) {
+                        gathering.writeGathered(headBuffer.flip(),
+                            body != null ? body : EMPTY_BODY);
+                        return;
                     }
                 }
+                outputStream.write(getHead().getBytes(StandardCharsets.UTF_8));
+                if (body != null) {
+                    outputStream.write(body);
+                }
+            }
 
-                public void writeHead() throws IOException {
-                    if (!isManualWrite()) {
-                        OutputStream outputStream = clientSocket.getOutputStream();
-                        outputStream.write(getHead().getBytes(StandardCharsets.UTF_8));
+            // The file is opened only now; streams that cannot take it in one piece get it
+            // read into memory a bounded piece at a time.
+            private void writeFileResponse() throws IOException {
+                prepareHead();
+                try (OpenFileCache.Handle handle = openFile(bodyFile)) {
+                    FileChannel file = handle.channel();
+                    if (outputStream instanceof GatheringOutput gathering) {
+                        ByteBuffer headBuffer = HEAD_BUFFER.get().clear();
+                        ByteBuffer head = writeHead(headBuffer) ? headBuffer.flip()
+                            : ByteBuffer.wrap(getHead().getBytes(StandardCharsets.UTF_8));
+                        for (FileSegment segment : bodyFileSegments) {
+                            if (segment.head.length > 0) {
+                                // a part header; buffered until the part itself goes out
+                                gathering.writeGathered(head, segment.head);
+                                head = EMPTY_BUFFER;
+                            }
+                            gathering.writeFile(head, file, segment.offset, segment.length);
+                            head = EMPTY_BUFFER;
+                        }
+                        gathering.writeGathered(head, bodyFileTail);
+                        return;
                     }
+                    outputStream.write(getHead().getBytes(StandardCharsets.UTF_8));
+                    readFileBody(file,
+                        (chunk, length, last) -> outputStream.write(chunk, 0, length));
                 }
-            };
-            if (req.length < 3) {
-                rt = Route.returnStatus(Status.BAD_REQUEST);
-                connectionOpen = false;
-            } else {
-                String[] url = req[1].split("\\?");
-                Map<String, String> queryParams;
-                List<String> queryStrings = new ArrayList<>();
-                if (url.length > 1) {
-                    queryStrings.add(url[1]);
+            }
+
+            private void prepareHead() {
+                if (pendingContinue != null) {
+                    pendingContinue.cancelContinue();
                 }
-                if ("application/x-www-form-urlencoded".equalsIgnoreCase(
-                    headers.get("Content-Type"))) {
-                    queryStrings.add(new String(body, StandardCharsets.UTF_8));
+                if (connectionManager.isDraining()) {
+                    header("Connection", "close");
                 }
-                queryParams = queryStrings.stream().flatMap(qs -> Arrays.stream(qs.split("&")))
-                    .filter(Predicate.not(String::isBlank)).map(kv -> kv.split("=", 2))
-                    .filter(kv -> kv.length > 1).collect(
-                        Collectors.toMap(kv -> URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
-                            kv -> URLDecoder.decode(kv[1], StandardCharsets.UTF_8)));
-                request = new RequestImpl(Method.valueOf(req[0].toUpperCase()), url[0], req[2],
-                    headers, queryParams, new HashMap<>(),
-                    (InetSocketAddress) clientSocket.getRemoteSocketAddress(), body) {
-                    @Override
-                    public cis5550.webserver.Session session() {
-                        String id = cookie("SessionID");
-                        cis5550.webserver.Session session = sessions.compute(
-                            id != null ? id : UUID.randomUUID().toString(), (k, sesh) -> {
-                                if (sesh == null || !sesh.isValid()) {
-                                    response.header("Set-Cookie", "SessionID=" + k);
-                                    sesh = new Session(k);
-                                }
-                                return sesh;
-                            });
-                        this.cookies.forEach(session::attribute);
-                        return session;
+            }
+        };
+        if (!keepAlive) {
+            response.header("Connection", "close");
+        }
+        if (head.isMalformed() || head.hasInvalidFraming()) {
+            response.commit(Route.returnStatus(Status.BAD_REQUEST).handle(null, response));
+            return false;
+        }
+        boolean chunkedBody = head.hasHeader("Transfer-Encoding");
+        if (chunkedBody && !head.headerEquals("Transfer-Encoding", "chunked")) {
+            // the transports only frame chunked bodies; any other coding leaves the connection
+            // out of step
+            response.commit(Route.returnStatus(Status.NOT_IMPLEMENTED).handle(null, response));
+            return false;
+        }
+        if (head.hasHeader("Expect") && !head.headerEquals("Expect", "100-continue")) {
+            response.commit(Route.returnStatus(Status.EXPECTATION_FAILED).handle(null, response));
+            return false;
+        }
+        if (head.isBodyTooLarge()
+            || maxRequestBodySizeConfig > 0 && head.contentLength() > maxRequestBodySizeConfig) {
+            // turned away before any of the body is read; the connection cannot be reused
+            response.commit(Route.returnStatus(Status.CONTENT_TOO_LARGE).handle(null, response));
+            return false;
+        }
+        boolean connectionOpen = dispatch(head.method(), head.target(), head.version(),
+            head.headers(), body, chunkedBody ? -1 : head.contentLength(), remoteAddr, response);
+        return connectionOpen && keepAlive && !head.headerEquals("Connection", "close")
+            && !"close".equals(response.headers.get("Connection"));
+    }
+
+    // Runs one HTTP/2 stream through the same routes; the response goes out as HEADERS and DATA
+    // frames on the stream instead of bytes on the socket.
+    private void handleStream(Http2Stream stream) throws Exception {
+        logger.info(stream.remoteAddr() + ": " + stream.method() + " " + stream.path() + " "
+            + HTTPVersion.HTTP2);
+
+        ResponseImpl response = new ResponseImpl(HTTPVersion.HTTP2, Status.OK, null, null) {
+            @Override
+            public void write(byte[] b) throws Exception {
+                if (!isHalted()) {
+                    if (!manualWrite) {
+                        this.headers.remove("Content-Length");
+                        stream.sendHeaders(status.code, headers, false);
                     }
-                };
-                rt = getRoute(Method.valueOf(request.requestMethod().toUpperCase()),
-                    request.headers("Host").split(":")[0], request.url());
+                    this.manualWrite = true;
+                    stream.sendData(b, 0, b.length, false);
+                }
             }
 
-            Object responseBodyOverride;
-            try {
-                responseBodyOverride = rt.handle(request, response);
-                connectionOpen = connectionOpen && !response.isManualWrite();
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-                responseBodyOverride = Route.returnStatus(Status.INTERNAL_SERVER_ERROR)
-                    .handle(request, response);
-                connectionOpen = false;
+            @Override
+            public void commit(Object overrideBody) throws IOException {
+                if (isManualWrite()) {
+                    if (!trailers.isEmpty()) {
+                        stream.sendTrailers(trailers);
+                    }
+                } else {
+                    if (overrideBody != null) {
+                        setBody(overrideBody.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                    if (isBodyless()) {
+                        setBody(new byte[0]);
+                        headers.remove("Content-Length");
+                    }
+                    if (bodyFile != null) {
+                        stream.sendHeaders(status.code, headers, bodyFileLength == 0);
+                        if (bodyFileLength > 0) {
+                            try (OpenFileCache.Handle handle = openFile(bodyFile)) {
+                                readFileBody(handle.channel(), (chunk, length, last) ->
+                                    stream.sendData(chunk, 0, length, last));
+                            }
+                        }
+                        return;
+                    }
+                    if (body == null) {
+                        setBody(new byte[0]);
+                    }
+                    stream.sendHeaders(status.code, headers, body.length == 0);
+                    if (body.length > 0) {
+                        stream.sendData(body, 0, body.length, true);
+                    }
+                }
             }
-            if (Method.HEAD.toString().equalsIgnoreCase(request.requestMethod())) {
-                response.writeHead();
-            } else {
-                response.commit(responseBodyOverride);
+
+            public void writeHead() throws IOException {
+                if (!isManualWrite()) {
+                    stream.sendHeaders(status.code, headers, true);
+                }
             }
-            outputStream.flush();
+        };
+        dispatch(stream.method(), stream.path(), HTTPVersion.HTTP2.versionString,
+            stream.headers(), stream.bodyStream(), stream.contentLength(),
+            stream.remoteAddr(), response);
+    }
 
-            connectionOpen = connectionOpen && !"close".equalsIgnoreCase(headers.get("Connection"));
-            connectionOpen = connectionOpen && !clientSocket.isClosed();
+    // Builds the request, runs the matching route and sends the response. Returns false if the
+    // route failed or the response can only be ended by closing the connection, so the
+    // connection cannot be reused.
+    private boolean dispatch(String method, String target, String protocol,
+        Map<String, String> headers, InputStream body, long contentLength,
+        InetSocketAddress remoteAddr, ResponseImpl response) throws Exception {
+        Method requestMethod;
+        try {
+            requestMethod = Method.valueOf(method.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            response.commit(Route.returnStatus(Status.NOT_IMPLEMENTED).handle(null, response));
+            return false;
         }
-    }
+        int queryStart = target.indexOf('?');
+        Map<String, String> queryParams;
+        List<String> queryStrings = new ArrayList<>();
+        if (queryStart >= 0) {
+            queryStrings.add(target.substring(queryStart + 1));
+        }
+        if ("application/x-www-form-urlencoded".equalsIgnoreCase(headers.get("Content-Type"))) {
+            // form fields are parameters, so this body is read up front
+            byte[] form;
+            try {
+                form = readBufferedBody(body);
+            } catch (RequestBody.TooLargeException e) {
+                logger.warn(remoteAddr + ": " + e.getMessage());
+                response.commit(Route.returnStatus(Status.CONTENT_TOO_LARGE)
+                    .handle(null, response));
+                return false;
+            }
+            body = new ByteArrayInputStream(form);
+            contentLength = form.length;
+            queryStrings.add(new String(form, StandardCharsets.UTF_8));
+        }
+        queryParams = queryStrings.stream().flatMap(qs -> Arrays.stream(qs.split("&")))
+            .filter(Predicate.not(String::isBlank)).map(kv -> kv.split("=", 2))
+            .filter(kv -> kv.length > 1).collect(
+                Collectors.toMap(kv -> URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                    kv -> URLDecoder.decode(kv[1], StandardCharsets.UTF_8)));
+        Request request = new RequestImpl(requestMethod,
+            queryStart >= 0 ? target.substring(0, queryStart) : target, protocol,
+            headers, queryParams, new HashMap<>(), remoteAddr, body, contentLength) {
+            @Override
+            public cis5550.webserver.Session session() {
+                String id = cookie("SessionID");
+                cis5550.webserver.Session session = sessions.compute(
+                    id != null ? id : UUID.randomUUID().toString(), (k, sesh) -> {
+                        if (sesh == null || !sesh.isValid()) {
+                            response.header("Set-Cookie", "SessionID=" + k);
+                            sesh = new Session(k);
+                        }
+                        return sesh;
+                    });
+                this.cookies.forEach(session::attribute);
+                return session;
+            }
+        };
+        String hostHeader = request.headers("Host");
+        Route rt = getRoute(requestMethod, hostHeader != null ? hostHeader.split(":")[0] : null,
+            request.url());
 
-    private String readHead(InputStream inputStream) throws IOException {
-        int BUF_SIZE = 1024;
-        ByteBuffer buffer = ByteBuffer.allocate(BUF_SIZE);
-        int match = 0, read = 0;
-        StringBuilder head = new StringBuilder();
-        while (match < 4) {
-            byte b = (byte) inputStream.read();
-            read++;
-            if (b == CLRF[match % CLRF.length]) {
-                match++;
-            } else {
-                match = 0;
+        Object responseBodyOverride;
+        try {
+            responseBodyOverride = rt.handle(request, response);
+        } catch (Exception e) {
+            if (isBodyTooLarge(e) && !response.isManualWrite()) {
+                // the route read past the body limit; the rest of the body is not read
+                logger.warn(remoteAddr + ": " + e.getMessage());
+                response.commit(Route.returnStatus(Status.CONTENT_TOO_LARGE)
+                    .handle(request, response));
+                return false;
             }
-            buffer.put(b);
-            if (match > 0 && match % 2 == 0 || read >= BUF_SIZE) {
-                buffer.flip();
-                byte[] buf = new byte[read];
-                buffer.get(buf);
-                head.append(new String(buf));
-                buffer.clear();
-                read = 0;
+            logger.error(e.getMessage(), e);
+            if (response.isManualWrite()) {
+                // part of the body is out already; only closing the connection tells the client
+                // that the rest is missing
+                return false;
             }
-            if (b == -1) {
-                buffer.clear();
-                throw new IOException("Stream closed before end of header");
+            response.commit(Route.returnStatus(Status.INTERNAL_SERVER_ERROR)
+                .handle(request, response));
+            return false;
+        }
+        if (requestMethod == Method.HEAD && !response.isManualWrite()) {
+            response.writeHead();
+        } else {
+            response.commit(responseBodyOverride);
+        }
+        return !response.endsConnection();
+    }
+
+    // Reads a body that the server has to hold in memory itself, up to the body limit.
+    private static byte[] readBufferedBody(InputStream body) throws IOException {
+        long limit = maxRequestBodySizeConfig > 0 ? maxRequestBodySizeConfig : MAX_BUFFERED_BODY;
+        byte[] bytes = body.readNBytes((int) Math.min(limit + 1, Integer.MAX_VALUE - 8));
+        if (bytes.length > limit) {
+            throw new RequestBody.TooLargeException("Request body exceeds " + limit + " bytes");
+        }
+        return bytes;
+    }
+
+    // Whether e comes from reading a body past its limit; routes may have wrapped it, as
+    // Request.body() does in an UncheckedIOException.
+    private static boolean isBodyTooLarge(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RequestBody.TooLargeException) {
+                return true;
             }
         }
-        return head.toString();
+        return false;
     }
 
+    // Routes of the host, of a "*.domain" host covering it, or else those registered without a
+    // host.
     private Route getRoute(Method method, String host, String path) {
         Map<Method, RouteTable> hostTable = hostMethodRouteTables.get(
             host);
+        if (hostTable == null && host != null && host.indexOf('.') > 0) {
+            hostTable = hostMethodRouteTables.get("*" + host.substring(host.indexOf('.')));
+        }
         if (hostTable == null) {
             hostTable = hostMethodRouteTables.get(null);
         }
+        RouteTable routeTable = hostTable != null ? hostTable.get(method) : null;
         Map.Entry<List<String>, Route> routeEntry =
-            hostTable != null ? hostTable.get(method).getRoute(path) : null;
+            routeTable != null ? routeTable.getRoute(path) : null;
         return routeEntry != null ? routeEntry.getValue() : staticRoute;
     }
 
+    public enum Transport {
+        // one worker thread per connection, blocked in read() while the connection is idle
+        BLOCKING,
+        // selector event loops read requests and only hand complete ones to a worker
+        NIO
+    }
+
+    public enum ExecutionMode {
+        // bounded pool of NUM_WORKERS platform threads
+        THREAD_POOL,
+        // a new virtual thread per connection (Java 21+), so blocking in Route.handle only parks
+        // the virtual thread instead of holding on to a platform thread
+        VIRTUAL_THREADS
+    }
+
     public static class staticFiles {
 
         public static void location(String s) throws Exception {
+            if (staticFileHandler != null && staticFileHandler.cache() != null) {
+                staticFileHandler.cache().close();
+            }
             if (s == null) {
+                staticFileHandler = null;
                 staticRoute = Route.returnStatus(Status.NOT_FOUND);
             } else {
-                staticRoute = (req, res) -> StaticFileRequestHandler.serve(req, res, Path.of(s));
+                StaticFileCache cache = null;
+                if (staticFileCacheSizeConfig > 0 || staticFileIndexSizeConfig > 0
+                    || staticFileNegativeCacheSizeConfig > 0 || staticFileOpenFilesConfig > 0) {
+                    try {
+                        cache = new StaticFileCache(Path.of(s), staticFileCacheSizeConfig,
+                            staticFileCacheMaxFileSizeConfig, staticFileIndexSizeConfig,
+                            staticFileNegativeCacheSizeConfig, new OpenFileCache(
+                                staticFileOpenFilesConfig, staticFileOpenFileIdleConfig));
+                    } catch (IOException e) {
+                        logger.warn("Serving " + s + " without a cache: "
+                            + e.getLocalizedMessage());
+                    }
+                }
+                StaticFileRequestHandler handler = new StaticFileRequestHandler(Path.of(s), cache,
+                    staticFileCacheControlConfig, staticFileContentHashETagsConfig);
+                staticFileHandler = handler;
+                staticRoute = handler::serve;
             }
             if (!isRunning()) {
                 run();
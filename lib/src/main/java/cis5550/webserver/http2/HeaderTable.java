@@ -0,0 +1,111 @@
+package cis5550.webserver.http2;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+// HPACK's index space: the 61 static entries followed by the dynamic table, newest entry first
+// (RFC 7541, section 2.3). Entry sizes count name and value octets plus 32.
+final class HeaderTable {
+
+    static final String[][] STATIC = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+        {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+        {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+        {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+        {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+        {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+        {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+        {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+        {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+        {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+        {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+        {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+        {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+        {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+        {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    static final int DEFAULT_SIZE = 4096;
+
+    private final Deque<String[]> dynamic = new ArrayDeque<>();
+    private int size = 0;
+    private int maxSize = DEFAULT_SIZE;
+
+    static int entrySize(String name, String value) {
+        return name.length() + value.length() + 32;
+    }
+
+    String[] get(int index) throws IOException {
+        if (index <= 0) {
+            throw new IOException("Invalid HPACK index " + index);
+        }
+        if (index <= STATIC.length) {
+            return STATIC[index - 1];
+        }
+        int i = index - STATIC.length - 1;
+        if (i >= dynamic.size()) {
+            throw new IOException("Invalid HPACK index " + index);
+        }
+        Iterator<String[]> it = dynamic.iterator();
+        while (i-- > 0) {
+            it.next();
+        }
+        return it.next();
+    }
+
+    // Index of an entry with this name and value, or -(index of an entry with this name), or 0.
+    int find(String name, String value) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC.length; i++) {
+            if (STATIC[i][0].equals(name)) {
+                if (STATIC[i][1].equals(value)) {
+                    return i + 1;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = -(i + 1);
+                }
+            }
+        }
+        int index = STATIC.length;
+        for (String[] entry : dynamic) {
+            index++;
+            if (entry[0].equals(name)) {
+                if (entry[1].equals(value)) {
+                    return index;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = -index;
+                }
+            }
+        }
+        return nameIndex;
+    }
+
+    void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+        evict(maxSize - entrySize);
+        // an entry larger than the whole table just empties it
+        if (entrySize <= maxSize) {
+            dynamic.addFirst(new String[]{name, value});
+            size += entrySize;
+        }
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    private void evict(int targetSize) {
+        while (size > targetSize && !dynamic.isEmpty()) {
+            String[] entry = dynamic.removeLast();
+            size -= entrySize(entry[0], entry[1]);
+        }
+    }
+}
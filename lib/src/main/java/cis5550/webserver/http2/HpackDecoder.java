@@ -0,0 +1,114 @@
+package cis5550.webserver.http2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Decodes header blocks (RFC 7541, section 6). One decoder per connection, since the dynamic
+// table carries over from one header block to the next.
+final class HpackDecoder {
+
+    private final HeaderTable table = new HeaderTable();
+    private final int maxTableSize;
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    // Returns the header fields of the block as {name, value} pairs, in order, or null if they
+    // add up to more than maxListSize, counting name, value and 32 bytes per field (RFC 7540,
+    // section 6.5.2). The whole block is decoded either way, so the dynamic table stays in step
+    // with the client's encoder.
+    List<String[]> decode(byte[] block, int off, int len, int maxListSize) throws IOException {
+        this.buf = block;
+        this.pos = off;
+        this.end = off + len;
+        List<String[]> fields = new ArrayList<>();
+        long listSize = 0;
+        boolean fieldSeen = false;
+        while (pos < end) {
+            int b = buf[pos] & 0xFF;
+            String[] field;
+            if ((b & 0x80) != 0) {
+                String[] entry = table.get(readInt(7));
+                field = new String[]{entry[0], entry[1]};
+            } else if ((b & 0xC0) == 0x40) {
+                field = readLiteral(6);
+                table.add(field[0], field[1]);
+            } else if ((b & 0xE0) == 0x20) {
+                if (fieldSeen) {
+                    throw new IOException("Dynamic table size update after a header field");
+                }
+                int size = readInt(5);
+                if (size > maxTableSize) {
+                    throw new IOException("Dynamic table size " + size + " exceeds " + maxTableSize);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // literal without indexing (0000) or never indexed (0001)
+                field = readLiteral(4);
+            }
+            fieldSeen = true;
+            listSize += field[0].length() + field[1].length() + 32;
+            if (listSize > maxListSize) {
+                fields = null;
+            } else if (fields != null) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private String[] readLiteral(int prefix) throws IOException {
+        int index = readInt(prefix);
+        String name = index == 0 ? readString() : table.get(index)[0];
+        return new String[]{name, readString()};
+    }
+
+    private int readInt(int prefix) throws IOException {
+        int mask = (1 << prefix) - 1;
+        int value = next() & mask;
+        if (value < mask) {
+            return value;
+        }
+        for (int shift = 0; shift < 28; shift += 7) {
+            int b = next();
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("HPACK integer too large");
+    }
+
+    private String readString() throws IOException {
+        boolean huffman = (buf[checkPos()] & 0x80) != 0;
+        int len = readInt(7);
+        if (len > end - pos) {
+            throw new IOException("HPACK string exceeds header block");
+        }
+        String s = huffman ? Huffman.decode(buf, pos, len)
+            : new String(buf, pos, len, StandardCharsets.ISO_8859_1);
+        pos += len;
+        return s;
+    }
+
+    private int next() throws IOException {
+        int b = buf[checkPos()] & 0xFF;
+        pos++;
+        return b;
+    }
+
+    private int checkPos() throws IOException {
+        if (pos >= end) {
+            throw new IOException("Truncated header block");
+        }
+        return pos;
+    }
+}
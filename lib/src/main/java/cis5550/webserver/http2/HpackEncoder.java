@@ -0,0 +1,85 @@
+package cis5550.webserver.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Encodes response header blocks. Fields found in the static or dynamic table are sent as an
+// index, stable fields (content-type, server, ...) are added to the dynamic table so repeated
+// responses shrink to a few bytes, and strings are Huffman-coded whenever that is shorter. Header
+// blocks have to be encoded in the order they are written to the connection.
+final class HpackEncoder {
+
+    private final HeaderTable table = new HeaderTable();
+    private int pendingSizeUpdate = -1;
+
+    // The peer's SETTINGS_HEADER_TABLE_SIZE; we never use more than the default size.
+    void setMaxTableSize(int peerMaxSize) {
+        int size = Math.min(peerMaxSize, HeaderTable.DEFAULT_SIZE);
+        if (size != table.maxSize()) {
+            table.setMaxSize(size);
+            pendingSizeUpdate = size;
+        }
+    }
+
+    void encode(String name, String value, ByteArrayOutputStream out) {
+        if (pendingSizeUpdate >= 0) {
+            writeInt(0x20, 5, pendingSizeUpdate, out);
+            pendingSizeUpdate = -1;
+        }
+        int index = table.find(name, value);
+        if (index > 0) {
+            writeInt(0x80, 7, index, out);
+            return;
+        }
+        if (isSensitive(name)) {
+            // never indexed, so that intermediaries don't index it either
+            writeInt(0x10, 4, -index, out);
+        } else if (isVolatile(name)) {
+            writeInt(0x00, 4, -index, out);
+        } else {
+            writeInt(0x40, 6, -index, out);
+            table.add(name, value);
+        }
+        if (index == 0) {
+            writeString(name, out);
+        }
+        writeString(value, out);
+    }
+
+    // Fields that change with practically every response would only churn the dynamic table.
+    private static boolean isVolatile(String name) {
+        return name.equals("date") || name.equals("content-length") || name.equals("etag")
+            || name.equals("last-modified") || name.equals("content-range")
+            || name.equals("location");
+    }
+
+    private static boolean isSensitive(String name) {
+        return name.equals("set-cookie") || name.equals("authorization");
+    }
+
+    private static void writeInt(int pattern, int prefix, int value, ByteArrayOutputStream out) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(String s, ByteArrayOutputStream out) {
+        int huffmanLength = Huffman.encodedLength(s);
+        if (huffmanLength < s.length()) {
+            writeInt(0x80, 7, huffmanLength, out);
+            Huffman.encode(s, out);
+        } else {
+            writeInt(0x00, 7, s.length(), out);
+            out.writeBytes(s.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+}
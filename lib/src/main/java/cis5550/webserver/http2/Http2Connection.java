@@ -0,0 +1,820 @@
+package cis5550.webserver.http2;
+
+import cis5550.tools.Logger;
+import cis5550.webserver.RequestHead;
+import cis5550.webserver.RequestParser;
+import cis5550.webserver.transport.ConnectionManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Server side of an HTTP/2 connection (RFC 7540) over a blocking socket. The thread calling
+// serve() reads frames, decodes header blocks and hands every request stream to the worker
+// executor as soon as its headers are in, so streams are multiplexed over the one connection; the
+// request body follows as it arrives, and the client gets window credit back only as the route
+// reads it. Workers write their response frames themselves under writeLock, waiting for
+// WINDOW_UPDATEs whenever the peer's flow-control window is used up.
+public class Http2Connection {
+
+    public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(
+        StandardCharsets.US_ASCII);
+    private static final Logger logger = Logger.getLogger(Http2Connection.class);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    // what we allow the peer to send before we acknowledge, per stream and for the connection
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+    // credit is handed back in WINDOW_UPDATEs of at least this much
+    private static final int WINDOW_UPDATE_THRESHOLD = RECEIVE_WINDOW / 2;
+    private static final int MAX_HEADER_BLOCK = 256 * 1024;
+    // decoded, as HTTP/1 heads are limited
+    private static final int MAX_HEADER_LIST_SIZE = RequestParser.MAX_HEAD_SIZE;
+
+    final InetSocketAddress remoteAddr;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Executor workers;
+    private final StreamHandler handler;
+    private final ConnectionManager.Connection tracked;
+    // request bodies above this are refused with a 413; 0 for no limit
+    private final long maxBodySize;
+    private final Object writeLock = new Object();
+    private final HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE);
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final byte[] frameHeader = new byte[9];
+    private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+    // written by the reading thread only; volatile for the GOAWAY sent when draining
+    private volatile int lastStreamId = 0;
+    // streams above this were opened after the GOAWAY and are refused
+    private volatile int goAwayStreamId = Integer.MAX_VALUE;
+    private int activeStreams = 0;
+    // peer settings and send windows; guarded by this. Frames are never written while holding
+    // this, since writers take writeLock first.
+    private int connectionSendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    // volatile rather than guarded, so writeHeaders() can read it under writeLock
+    private volatile int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    // what the peer may still send on the connection, and what has been read but not credited
+    private int connectionReceiveWindow = RECEIVE_WINDOW;
+    private int pendingCredit = 0;
+    private boolean closed = false;
+
+    public Http2Connection(InputStream in, OutputStream out, InetSocketAddress remoteAddr,
+        Executor workers, StreamHandler handler, ConnectionManager.Connection tracked,
+        long maxBodySize) {
+        this.in = new BufferedInputStream(in, 2 * DEFAULT_FRAME_SIZE);
+        this.out = new BufferedOutputStream(out, DEFAULT_FRAME_SIZE + 9);
+        this.remoteAddr = remoteAddr;
+        this.workers = workers;
+        this.handler = handler;
+        this.tracked = tracked;
+        this.maxBodySize = maxBodySize;
+        tracked.onDrain(this::drain);
+    }
+
+    // Graceful shutdown: GOAWAY tells the client to open no more streams; those already open are
+    // served, and the connection manager closes the connection once they are done.
+    private void drain() {
+        goAwayStreamId = lastStreamId;
+        goAway(NO_ERROR);
+    }
+
+    // Whether a request head is really the first line of the prior-knowledge connection preface.
+    public static boolean isPreface(RequestHead head) {
+        return !head.isMalformed() && "PRI".equals(head.method()) && "*".equals(head.target())
+            && "HTTP/2.0".equals(head.version()) && head.headers().isEmpty();
+    }
+
+    // Serves a connection that starts with the client connection preface (prior knowledge or ALPN).
+    public void serve() throws IOException {
+        writeInitialSettings();
+        run();
+    }
+
+    // Serves a connection that has just been upgraded from HTTP/1.1 with "Upgrade: h2c". The
+    // request that carried the upgrade becomes stream 1, half-closed from the client's side.
+    public void serveUpgrade(String http2Settings, String method, String path,
+        Map<String, String> headers, byte[] body) throws IOException {
+        byte[] settings = Base64.getUrlDecoder().decode(http2Settings.trim());
+        applySettings(settings, 0, settings.length);
+        writeInitialSettings();
+        Http2Stream stream = new Http2Stream(1, this, initialSendWindow, RECEIVE_WINDOW);
+        stream.addHeader(":method", method);
+        stream.addHeader(":path", path);
+        stream.addHeader(":scheme", "http");
+        if (headers.get("Host") != null) {
+            stream.addHeader(":authority", headers.get("Host"));
+        }
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            String name = e.getKey().toLowerCase();
+            if (!name.equals("host") && !isConnectionSpecific(name)
+                && !name.equals("http2-settings")) {
+                stream.addHeader(name, e.getValue());
+            }
+        }
+        stream.body.appendUncredited(body);
+        stream.body.end();
+        stream.remoteClosed = true;
+        lastStreamId = 1;
+        streams.put(1, stream);
+        dispatch(stream);
+        run();
+    }
+
+    private void run() throws IOException {
+        try {
+            readPreface();
+            while (readFrame()) {
+                // keep reading
+            }
+        } catch (ProtocolError e) {
+            logger.warn(remoteAddr + ": HTTP/2 error " + e.code + ": " + e.getMessage());
+            goAway(e.code);
+        } finally {
+            for (Http2Stream stream : streams.values()) {
+                stream.body.fail(new IOException("Connection closed"));
+            }
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                while (activeStreams > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = in.readNBytes(PREFACE.length);
+        for (int i = 0; i < PREFACE.length; i++) {
+            if (i >= preface.length || preface[i] != PREFACE[i]) {
+                throw new ProtocolError(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    // Reads and processes one frame; returns false once the peer is done with the connection.
+    private boolean readFrame() throws IOException {
+        if (in.readNBytes(frameHeader, 0, 9) < 9) {
+            return false;
+        }
+        int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8)
+            | (frameHeader[2] & 0xFF);
+        int type = frameHeader[3] & 0xFF;
+        int flags = frameHeader[4] & 0xFF;
+        int streamId = readInt31(frameHeader, 5);
+        if (length > payload.length) {
+            throw new ProtocolError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        if (in.readNBytes(payload, 0, length) < length) {
+            return false;
+        }
+
+        switch (type) {
+            case DATA -> onData(streamId, flags, length);
+            case HEADERS -> onHeaders(streamId, flags, length);
+            case PRIORITY -> {
+                if (streamId == 0 || length != 5) {
+                    throw new ProtocolError(PROTOCOL_ERROR, "Invalid PRIORITY frame");
+                }
+            }
+            case RST_STREAM -> {
+                if (streamId == 0 || length != 4) {
+                    throw new ProtocolError(PROTOCOL_ERROR, "Invalid RST_STREAM frame");
+                }
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.body.fail(new IOException("Stream " + streamId + " was reset"));
+                    synchronized (this) {
+                        stream.reset = true;
+                        notifyAll();
+                    }
+                }
+            }
+            case SETTINGS -> {
+                if (streamId != 0 || length % 6 != 0) {
+                    throw new ProtocolError(PROTOCOL_ERROR, "Invalid SETTINGS frame");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    applySettings(payload, 0, length);
+                    writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+                }
+            }
+            case PING -> {
+                if (streamId != 0 || length != 8) {
+                    throw new ProtocolError(PROTOCOL_ERROR, "Invalid PING frame");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                }
+            }
+            case GOAWAY -> {
+                return false;
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+            case CONTINUATION ->
+                throw new ProtocolError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+            case PUSH_PROMISE -> throw new ProtocolError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            default -> {
+                // unknown frame types are ignored
+            }
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ProtocolError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int[] range = stripPadding(flags, length);
+        int dataLength = range[1] - range[0];
+        // the whole frame counts against flow control, padding included; padding is nobody's to
+        // read, so its credit goes back right away
+        synchronized (this) {
+            connectionReceiveWindow -= length;
+            if (connectionReceiveWindow < 0) {
+                throw new ProtocolError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+            }
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new ProtocolError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            bodyRead(null, length);
+            if (stream == null || !stream.reset) {
+                resetStream(streamId, STREAM_CLOSED);
+            }
+            return;
+        }
+        boolean overrun;
+        synchronized (this) {
+            stream.receiveWindow -= length;
+            overrun = stream.receiveWindow < 0;
+        }
+        stream.bodyReceived += dataLength;
+        if (overrun) {
+            bodyRead(null, length);
+            abortStream(stream, FLOW_CONTROL_ERROR, "Stream window exceeded");
+            return;
+        }
+        if (maxBodySize > 0 && stream.bodyReceived > maxBodySize) {
+            bodyRead(null, length);
+            stream.refuse(413);
+            abortStream(stream, CANCEL, "Request body too large");
+            return;
+        }
+        if (!stream.body.append(payload, range[0], dataLength)) {
+            // the route is done with the request already
+            bodyRead(null, length);
+        } else {
+            bodyRead(stream, length - dataLength);
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            stream.body.end();
+        }
+    }
+
+    // Gives up on a request whose body is still coming in: the route cannot read any more of it,
+    // and RST_STREAM tells the client to stop sending.
+    private void abortStream(Http2Stream stream, int errorCode, String reason) throws IOException {
+        logger.warn(remoteAddr + ": resetting stream " + stream.id + ": " + reason);
+        stream.remoteClosed = true;
+        stream.body.fail(new IOException(reason));
+        bodyRead(null, stream.body.discard());
+        synchronized (this) {
+            stream.reset = true;
+            notifyAll();
+        }
+        resetStream(stream.id, errorCode);
+    }
+
+    // Credits n bytes of request body, which a route has read or which were dropped, back to the
+    // client: to the connection window, and to the stream's if more is to come on it. The credit
+    // is collected until it is worth a WINDOW_UPDATE; the peer can only stall once at least half
+    // of a window has been read, so it always gets one in time.
+    void bodyRead(Http2Stream stream, int n) throws IOException {
+        if (n <= 0) {
+            return;
+        }
+        int connectionCredit = 0;
+        int streamCredit = 0;
+        synchronized (this) {
+            pendingCredit += n;
+            if (pendingCredit >= WINDOW_UPDATE_THRESHOLD) {
+                connectionCredit = pendingCredit;
+                connectionReceiveWindow += pendingCredit;
+                pendingCredit = 0;
+            }
+            if (stream != null && !stream.remoteClosed && !stream.reset) {
+                stream.pendingCredit += n;
+                if (stream.pendingCredit >= WINDOW_UPDATE_THRESHOLD) {
+                    streamCredit = stream.pendingCredit;
+                    stream.receiveWindow += stream.pendingCredit;
+                    stream.pendingCredit = 0;
+                }
+            }
+        }
+        if (connectionCredit > 0) {
+            writeWindowUpdate(0, connectionCredit);
+        }
+        if (streamCredit > 0) {
+            writeWindowUpdate(stream.id, streamCredit);
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ProtocolError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int[] range = stripPadding(flags, length);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            range[0] += 5;
+            if (range[0] > range[1]) {
+                throw new ProtocolError(PROTOCOL_ERROR, "HEADERS frame too short");
+            }
+        }
+        byte[] block = readHeaderBlock(streamId, flags, range[0], range[1] - range[0]);
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(block, 0, block.length, MAX_HEADER_LIST_SIZE);
+        } catch (IOException e) {
+            throw new ProtocolError(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null && stream.reset) {
+            // trailers the client sent before it saw our RST_STREAM
+            return;
+        }
+        if (stream != null) {
+            // trailers; they have to end the stream and are not passed on, so their size does
+            // not matter
+            if (stream.remoteClosed || !endStream) {
+                throw new ProtocolError(PROTOCOL_ERROR, "Unexpected HEADERS on " + streamId);
+            }
+            stream.remoteClosed = true;
+            stream.body.end();
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new ProtocolError(PROTOCOL_ERROR, "Invalid new stream " + streamId);
+        }
+        if (streamId <= lastStreamId) {
+            // a stream that is done here, or was reset or refused, as with DATA; the block has
+            // been decoded all the same, which keeps the dynamic table in step
+            resetStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        lastStreamId = streamId;
+        synchronized (this) {
+            if (activeStreams < MAX_CONCURRENT_STREAMS && streamId <= goAwayStreamId) {
+                stream = new Http2Stream(streamId, this, initialSendWindow, RECEIVE_WINDOW);
+            }
+        }
+        if (stream == null) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (fields == null) {
+            logger.warn(remoteAddr + ": header list on stream " + streamId + " too large");
+            stream.refuse(431);
+            if (!endStream) {
+                resetStream(streamId, CANCEL);
+            }
+            return;
+        }
+        try {
+            for (String[] field : fields) {
+                stream.addHeader(field[0], field[1]);
+            }
+            if (stream.method() == null || stream.path() == null || stream.scheme() == null) {
+                throw new IOException("Missing pseudo-header");
+            }
+        } catch (IOException e) {
+            logger.warn(remoteAddr + ": malformed request on stream " + streamId + ": "
+                + e.getMessage());
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (maxBodySize > 0 && stream.contentLength() > maxBodySize) {
+            logger.warn(remoteAddr + ": request body on stream " + streamId + " too large");
+            stream.refuse(413);
+            if (!endStream) {
+                resetStream(streamId, CANCEL);
+            }
+            return;
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            stream.body.end();
+        }
+        streams.put(streamId, stream);
+        dispatch(stream);
+    }
+
+    // Collects the header block fragment of a HEADERS frame and any CONTINUATION frames after it.
+    private byte[] readHeaderBlock(int streamId, int flags, int off, int len) throws IOException {
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            byte[] block = new byte[len];
+            System.arraycopy(payload, off, block, 0, len);
+            return block;
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(payload, off, len);
+        while (true) {
+            if (in.readNBytes(frameHeader, 0, 9) < 9) {
+                throw new IOException("Connection closed inside header block");
+            }
+            int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8)
+                | (frameHeader[2] & 0xFF);
+            if ((frameHeader[3] & 0xFF) != CONTINUATION || readInt31(frameHeader, 5) != streamId) {
+                throw new ProtocolError(PROTOCOL_ERROR, "Expected CONTINUATION");
+            }
+            if (length > payload.length || block.size() + length > MAX_HEADER_BLOCK) {
+                throw new ProtocolError(FRAME_SIZE_ERROR, "Header block too large");
+            }
+            if (in.readNBytes(payload, 0, length) < length) {
+                throw new IOException("Connection closed inside header block");
+            }
+            block.write(payload, 0, length);
+            if ((frameHeader[4] & FLAG_END_HEADERS) != 0) {
+                return block.toByteArray();
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new ProtocolError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = readInt31(payload, 0);
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new ProtocolError(PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+            }
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflow = false;
+        synchronized (this) {
+            if (streamId == 0) {
+                if ((long) connectionSendWindow + increment > Integer.MAX_VALUE) {
+                    throw new ProtocolError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                connectionSendWindow += increment;
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    stream.reset = true;
+                    overflow = true;
+                } else {
+                    stream.sendWindow += increment;
+                }
+            }
+            notifyAll();
+        }
+        if (overflow) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private void applySettings(byte[] buf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i += 6) {
+            int id = ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
+            int value = ((buf[i + 2] & 0xFF) << 24) | ((buf[i + 3] & 0xFF) << 16)
+                | ((buf[i + 4] & 0xFF) << 8) | (buf[i + 5] & 0xFF);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> {
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value);
+                    }
+                }
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new ProtocolError(PROTOCOL_ERROR, "Invalid ENABLE_PUSH");
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new ProtocolError(FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        int delta = value - initialSendWindow;
+                        initialSendWindow = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < DEFAULT_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new ProtocolError(PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = value;
+                }
+                default -> {
+                    // MAX_CONCURRENT_STREAMS only limits pushes, which we never send
+                }
+            }
+        }
+    }
+
+    private int[] stripPadding(int flags, int length) throws IOException {
+        if ((flags & FLAG_PADDED) == 0) {
+            return new int[]{0, length};
+        }
+        int padding = length > 0 ? payload[0] & 0xFF : Integer.MAX_VALUE;
+        if (padding >= length) {
+            throw new ProtocolError(PROTOCOL_ERROR, "Padding exceeds frame");
+        }
+        return new int[]{1, length - padding};
+    }
+
+    private void dispatch(Http2Stream stream) {
+        synchronized (this) {
+            if (activeStreams++ == 0) {
+                tracked.active();
+            }
+        }
+        try {
+            workers.execute(() -> runStream(stream));
+        } catch (RejectedExecutionException e) {
+            // the dispatch queue is full; REFUSED_STREAM tells the client it is safe to retry
+            logger.warn(remoteAddr + ": refusing stream " + stream.id + ", dispatch queue full");
+            streams.remove(stream.id);
+            streamDone();
+            try {
+                resetStream(stream.id, REFUSED_STREAM);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void runStream(Http2Stream stream) {
+        try {
+            handler.handle(stream);
+            stream.finish();
+        } catch (Exception e) {
+            if (!stream.reset && !isClosed()) {
+                logger.error(e.getLocalizedMessage(), e);
+                try {
+                    if (!stream.isHeadersSent()) {
+                        stream.sendHeaders(500, Map.of(), true);
+                    } else {
+                        resetStream(stream.id, INTERNAL_ERROR);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            streams.remove(stream.id);
+            try {
+                bodyRead(null, stream.body.discard());
+                if (!stream.remoteClosed && !stream.reset) {
+                    // the response is complete; the rest of the request is not needed
+                    resetStream(stream.id, NO_ERROR);
+                }
+            } catch (IOException ignored) {
+            }
+            streamDone();
+        }
+    }
+
+    private synchronized void streamDone() {
+        if (--activeStreams == 0) {
+            tracked.idle();
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void writeInitialSettings() throws IOException {
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+        }
+    }
+
+    private static void putSetting(byte[] buf, int off, int id, int value) {
+        buf[off] = (byte) (id >>> 8);
+        buf[off + 1] = (byte) id;
+        buf[off + 2] = (byte) (value >>> 24);
+        buf[off + 3] = (byte) (value >>> 16);
+        buf[off + 4] = (byte) (value >>> 8);
+        buf[off + 5] = (byte) value;
+    }
+
+    // A negative status sends a trailer block, which has no :status.
+    void writeHeaders(Http2Stream stream, int status, Map<String, String> headers,
+        boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            if (stream.reset) {
+                throw new IOException("Stream " + stream.id + " was reset");
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+            if (status >= 0) {
+                encoder.encode(":status", String.valueOf(status), block);
+            }
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                String name = e.getKey().toLowerCase();
+                if (!isConnectionSpecific(name)) {
+                    encoder.encode(name, e.getValue(), block);
+                }
+            }
+            byte[] bytes = block.toByteArray();
+            int maxFrameSize = peerMaxFrameSize;
+            int off = 0;
+            int type = HEADERS;
+            do {
+                int len = Math.min(bytes.length - off, maxFrameSize);
+                int flags = off + len == bytes.length ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrameHeader(len, type, flags, stream.id);
+                out.write(bytes, off, len);
+                off += len;
+                type = CONTINUATION;
+            } while (off < bytes.length);
+            out.flush();
+        }
+    }
+
+    void writeData(Http2Stream stream, byte[] data, int off, int len, boolean endStream)
+        throws IOException {
+        int sent = 0;
+        do {
+            int n;
+            synchronized (this) {
+                while (sent < len && (connectionSendWindow <= 0 || stream.sendWindow <= 0)
+                    && !stream.reset && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for flow control", e);
+                    }
+                }
+                if (stream.reset || closed) {
+                    throw new IOException("Stream " + stream.id + " was reset");
+                }
+                n = Math.min(len - sent, Math.min(peerMaxFrameSize,
+                    Math.min(connectionSendWindow, stream.sendWindow)));
+                n = Math.max(n, 0);
+                connectionSendWindow -= n;
+                stream.sendWindow -= n;
+            }
+            boolean last = sent + n == len;
+            synchronized (writeLock) {
+                writeFrameHeader(n, DATA, last && endStream ? FLAG_END_STREAM : 0, stream.id);
+                out.write(data, off + sent, n);
+                if (last) {
+                    out.flush();
+                }
+            }
+            sent += n;
+        } while (sent < len);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] buf = new byte[4];
+        buf[0] = (byte) (increment >>> 24);
+        buf[1] = (byte) (increment >>> 16);
+        buf[2] = (byte) (increment >>> 8);
+        buf[3] = (byte) increment;
+        writeFrame(WINDOW_UPDATE, 0, streamId, buf, 0, 4);
+    }
+
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        byte[] buf = {(byte) (errorCode >>> 24), (byte) (errorCode >>> 16),
+            (byte) (errorCode >>> 8), (byte) errorCode};
+        writeFrame(RST_STREAM, 0, streamId, buf, 0, 4);
+    }
+
+    private void goAway(int errorCode) {
+        int last = Math.min(lastStreamId, goAwayStreamId);
+        byte[] buf = new byte[8];
+        buf[0] = (byte) (last >>> 24);
+        buf[1] = (byte) (last >>> 16);
+        buf[2] = (byte) (last >>> 8);
+        buf[3] = (byte) last;
+        buf[7] = (byte) errorCode;
+        try {
+            writeFrame(GOAWAY, 0, 0, buf, 0, 8);
+        } catch (IOException e) {
+            logger.debug(e.getLocalizedMessage());
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] buf, int off, int len)
+        throws IOException {
+        synchronized (writeLock) {
+            writeFrameHeader(len, type, flags, streamId);
+            out.write(buf, off, len);
+            out.flush();
+        }
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId)
+        throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(streamId >>> 24);
+        out.write(streamId >>> 16);
+        out.write(streamId >>> 8);
+        out.write(streamId);
+    }
+
+    private static int readInt31(byte[] buf, int off) {
+        return ((buf[off] & 0x7F) << 24) | ((buf[off + 1] & 0xFF) << 16)
+            | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    private static boolean isConnectionSpecific(String name) {
+        return name.equals("connection") || name.equals("keep-alive")
+            || name.equals("proxy-connection") || name.equals("transfer-encoding")
+            || name.equals("upgrade");
+    }
+
+    // A connection error: answered with GOAWAY and the end of the connection.
+    private static final class ProtocolError extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ProtocolError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
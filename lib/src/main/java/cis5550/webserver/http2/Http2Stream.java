@@ -0,0 +1,281 @@
+package cis5550.webserver.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// One request/response exchange on an HTTP/2 connection. The reader thread fills in the request
+// and goes on to feed its body in as DATA frames arrive; the worker running the route reads the
+// body through bodyStream() and sends the response through sendHeaders() and sendData().
+public final class Http2Stream {
+
+    final int id;
+    final Http2Connection connection;
+    // request pseudo-headers, and the regular headers keyed case-insensitively
+    private String method;
+    private String path;
+    private String scheme;
+    private String authority;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    final BodyStream body = new BodyStream();
+    // send and receive windows, and what has been read but not credited yet; guarded by the
+    // connection
+    int sendWindow;
+    int receiveWindow;
+    int pendingCredit = 0;
+    // request body bytes received so far; reader thread only
+    long bodyReceived = 0;
+    volatile boolean remoteClosed = false;
+    volatile boolean reset = false;
+    private boolean headersSent = false;
+    private boolean localClosed = false;
+
+    Http2Stream(int id, Http2Connection connection, int sendWindow, int receiveWindow) {
+        this.id = id;
+        this.connection = connection;
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+    }
+
+    // The request body as the route reads it. The reader thread appends the payload of DATA
+    // frames, and whatever the route has read is credited back to the client's windows.
+    final class BodyStream extends InputStream {
+
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int chunkOffset = 0;
+        private boolean ended = false;
+        private boolean discarded = false;
+        private IOException failure;
+        // bytes at the front that did not come in DATA frames (the body of an h2c upgrade)
+        private int uncredited = 0;
+
+        // Returns false if the route is done and nobody is going to read the data.
+        synchronized boolean append(byte[] data, int off, int len) {
+            if (discarded) {
+                return false;
+            }
+            if (len > 0) {
+                chunks.add(Arrays.copyOfRange(data, off, off + len));
+                notifyAll();
+            }
+            return true;
+        }
+
+        synchronized void appendUncredited(byte[] data) {
+            append(data, 0, data.length);
+            uncredited += data.length;
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        // Makes the route's reads fail from now on.
+        synchronized void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        // Drops what is buffered, and anything appended later; returns the bytes to credit.
+        synchronized int discard() {
+            discarded = true;
+            int unread = buffered() - uncredited;
+            chunks.clear();
+            uncredited = 0;
+            return Math.max(unread, 0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            int credit;
+            synchronized (this) {
+                while (chunks.isEmpty() && !ended && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading the body");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                if (chunks.isEmpty()) {
+                    return -1;
+                }
+                while (n < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peek();
+                    int count = Math.min(len - n, chunk.length - chunkOffset);
+                    System.arraycopy(chunk, chunkOffset, b, off + n, count);
+                    n += count;
+                    chunkOffset += count;
+                    if (chunkOffset == chunk.length) {
+                        chunks.poll();
+                        chunkOffset = 0;
+                    }
+                }
+                credit = n - Math.min(n, uncredited);
+                uncredited -= n - credit;
+            }
+            if (credit > 0) {
+                connection.bodyRead(Http2Stream.this, credit);
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffered();
+        }
+
+        private int buffered() {
+            int total = -chunkOffset;
+            for (byte[] chunk : chunks) {
+                total += chunk.length;
+            }
+            return Math.max(total, 0);
+        }
+    }
+
+    void addHeader(String name, String value) throws IOException {
+        if (name.startsWith(":")) {
+            if (!headers.isEmpty()) {
+                throw new IOException("Pseudo-header " + name + " after regular headers");
+            }
+            switch (name) {
+                case ":method" -> method = value;
+                case ":path" -> path = value;
+                case ":scheme" -> scheme = value;
+                case ":authority" -> authority = value;
+                default -> throw new IOException("Unknown pseudo-header " + name);
+            }
+            return;
+        }
+        if (!name.equals(name.toLowerCase())) {
+            throw new IOException("Uppercase header name " + name);
+        }
+        // cookie crumbs are joined with "; " (RFC 7540, section 8.1.2.5), everything else with ','
+        headers.merge(name, value, (v1, v2) -> v1 + (name.equals("cookie") ? "; " : ",") + v2);
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String method() {
+        return method;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    public String scheme() {
+        return scheme;
+    }
+
+    public String authority() {
+        return authority;
+    }
+
+    public Map<String, String> headers() {
+        if (authority != null && !headers.containsKey("host")) {
+            headers.put("host", authority);
+        }
+        return headers;
+    }
+
+    // The request body, which may still be coming in while the route reads it.
+    public InputStream bodyStream() {
+        return body;
+    }
+
+    // From the content-length header, or -1 if the client did not announce the length.
+    public long contentLength() {
+        String value = headers.get("content-length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public InetSocketAddress remoteAddr() {
+        return connection.remoteAddr;
+    }
+
+    public boolean isHeadersSent() {
+        return headersSent;
+    }
+
+    // Sends the response head. Connection-specific headers are dropped and names are lowercased,
+    // as HTTP/2 requires.
+    public synchronized void sendHeaders(int status, Map<String, String> responseHeaders,
+        boolean endStream) throws IOException {
+        if (headersSent) {
+            throw new IllegalStateException("Headers already sent on stream " + id);
+        }
+        headersSent = true;
+        localClosed = endStream;
+        connection.writeHeaders(this, status, responseHeaders, endStream);
+    }
+
+    public void sendData(byte[] data, int off, int len, boolean endStream) throws IOException {
+        if (localClosed) {
+            throw new IllegalStateException("Stream " + id + " already closed");
+        }
+        localClosed = endStream;
+        connection.writeData(this, data, off, len, endStream);
+    }
+
+    // Ends the stream with a trailing HEADERS frame, after the response head and its data.
+    public void sendTrailers(Map<String, String> trailers) throws IOException {
+        if (!headersSent || localClosed) {
+            throw new IllegalStateException("No open response on stream " + id);
+        }
+        localClosed = true;
+        connection.writeHeaders(this, -1, trailers, true);
+    }
+
+    // Answers with status alone, unless the response has started already; for the reader thread,
+    // when it gives up on a request.
+    synchronized void refuse(int status) throws IOException {
+        if (!headersSent) {
+            headersSent = true;
+            localClosed = true;
+            connection.writeHeaders(this, status, Map.of(), true);
+        }
+    }
+
+    // Ends the stream if the response has not done so yet.
+    public synchronized void finish() throws IOException {
+        if (!localClosed && !reset) {
+            if (!headersSent) {
+                sendHeaders(200, Map.of(), true);
+            } else {
+                sendData(new byte[0], 0, 0, true);
+            }
+        }
+    }
+}
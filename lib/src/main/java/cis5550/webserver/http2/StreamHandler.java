@@ -0,0 +1,9 @@
+package cis5550.webserver.http2;
+
+@FunctionalInterface
+public interface StreamHandler {
+
+    // Runs the request of one stream and sends its response through the stream. Runs on a worker,
+    // so a connection can have many streams in flight at once.
+    void handle(Http2Stream stream) throws Exception;
+}
@@ -0,0 +1,224 @@
+package cis5550.webserver.model;
+
+import cis5550.tools.Logger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Open FileChannels of the files served most recently, so that sending a file again costs
+// neither an open() nor a close(). A channel is shared by every response sending its file at the
+// time, which is safe because the transports only ever transfer and read at explicit positions;
+// it is reference counted, and closed once it has been retired and the last response is done.
+//
+// A channel is retired when its file changes or goes away (see invalidate), when it has not been
+// used for idleMillis, or to keep no more than maxOpen channels open; only channels nobody is
+// using are closed to make room, and while all are in use, further files are opened and closed
+// per response as if there were no cache.
+public class OpenFileCache implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(OpenFileCache.class);
+
+    private final int maxOpen;
+    private final long idleNanos;
+    private final Map<Path, OpenFile> files = new ConcurrentHashMap<>();
+    // bumped by every invalidate(), so that a file opened meanwhile is not cached
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // A channel handed out by open(); closing it gives it back.
+    public static final class Handle implements Closeable {
+
+        private final FileChannel channel;
+        // null if the channel is not cached, and closed with the handle
+        private final OpenFile file;
+
+        private Handle(FileChannel channel, OpenFile file) {
+            this.channel = channel;
+            this.file = file;
+        }
+
+        // A handle on a channel of its own.
+        public static Handle uncached(Path path) throws IOException {
+            return new Handle(FileChannel.open(path), null);
+        }
+
+        public FileChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file == null) {
+                channel.close();
+            } else {
+                file.release();
+            }
+        }
+    }
+
+    private static final class OpenFile {
+
+        private final FileChannel channel;
+        private int references = 1;
+        private volatile long lastUsed = System.nanoTime();
+        private boolean retired = false;
+
+        OpenFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // Takes a reference, unless the channel is on its way out. A channel can also have been
+        // closed under us, by the interrupt of a thread that was using it.
+        synchronized boolean retain() {
+            if (retired || !channel.isOpen()) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        synchronized void release() {
+            references--;
+            lastUsed = System.nanoTime();
+            if (references == 0 && retired) {
+                close();
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            if (references == 0) {
+                close();
+            }
+        }
+
+        // Retires the channel if nobody uses it and it has been idle since before idleSince.
+        synchronized boolean retireIfIdle(long idleSince) {
+            if (references > 0 || lastUsed - idleSince > 0) {
+                return false;
+            }
+            retire();
+            return true;
+        }
+
+        synchronized boolean isIdle() {
+            return references == 0;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close a cached file: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    public OpenFileCache(int maxOpen, long idleMillis) {
+        this.maxOpen = maxOpen;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    }
+
+    // A handle on the open channel of file, which has to be given as an absolute, normalized path
+    // below a watched root; the file is opened if it is not open yet.
+    public Handle open(Path file) throws IOException {
+        OpenFile cached = files.get(file);
+        if (cached != null) {
+            if (cached.retain()) {
+                hits.incrementAndGet();
+                return new Handle(cached.channel, cached);
+            }
+            files.remove(file, cached);
+        }
+        misses.incrementAndGet();
+        long generation = this.generation.get();
+        FileChannel channel = FileChannel.open(file);
+        if (maxOpen <= 0 || generation != this.generation.get()) {
+            return new Handle(channel, null);
+        }
+        OpenFile opened = new OpenFile(channel);
+        OpenFile raced = files.putIfAbsent(file, opened);
+        if (raced != null) {
+            // another response opened the file at the same time; its channel is shared
+            if (raced.retain()) {
+                channel.close();
+                return new Handle(raced.channel, raced);
+            }
+            return new Handle(channel, null);
+        }
+        if (generation != this.generation.get()) {
+            // the file may have changed while the channel went in
+            files.remove(file, opened);
+            opened.retire();
+        } else if (files.size() > maxOpen && !closeLeastRecentlyUsed()) {
+            // every channel is in use; this one is closed once its response is done
+            files.remove(file, opened);
+            opened.retire();
+        }
+        return new Handle(channel, opened);
+    }
+
+    // Retires the channels of file, which has changed or gone away, and of everything below it.
+    public void invalidate(Path file) {
+        generation.incrementAndGet();
+        files.entrySet().removeIf(e -> {
+            if (!e.getKey().startsWith(file)) {
+                return false;
+            }
+            e.getValue().retire();
+            return true;
+        });
+    }
+
+    // Retires the channels that have not been used for idleMillis.
+    public void closeIdle() {
+        long idleSince = System.nanoTime() - idleNanos;
+        files.entrySet().removeIf(e -> e.getValue().retireIfIdle(idleSince));
+    }
+
+    // Makes room by retiring the idle channel used least recently. Returns false if all are in
+    // use.
+    private synchronized boolean closeLeastRecentlyUsed() {
+        Map.Entry<Path, OpenFile> victim = null;
+        for (Map.Entry<Path, OpenFile> e : files.entrySet()) {
+            OpenFile candidate = e.getValue();
+            if (candidate.isIdle() && (victim == null
+                || candidate.lastUsed - victim.getValue().lastUsed < 0)) {
+                victim = e;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (files.remove(victim.getKey(), victim.getValue())) {
+            victim.getValue().retire();
+        }
+        return true;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    // Channels held open.
+    public int size() {
+        return files.size();
+    }
+
+    @Override
+    public void close() {
+        generation.incrementAndGet();
+        files.values().forEach(OpenFile::retire);
+        files.clear();
+    }
+}
@@ -0,0 +1,482 @@
+package cis5550.webserver.model;
+
+import cis5550.tools.Logger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Contents and metadata of small static files, so that a hit is served from memory without a
+// single system call. The cache holds at most maxBytes of file contents; files larger than
+// maxFileSize are never cached and go out with transferTo instead.
+//
+// When it is full, the entry used least often goes first (the least recently used among equals),
+// which keeps a burst of one-off requests from pushing out the hot assets. The use counts are
+// halved every so often, so that files which were popular once do not stay forever.
+//
+// A WatchService on the root (and every directory below it) drops entries as soon as their file
+// changes or goes away. A file read while such a change comes in is not cached, since what was
+// read may already be out of date. Changes to the target of a symbolic link are not seen.
+//
+// An entry also holds the encoded variants of its file (its .br and .gz sidecars, or contents
+// gzipped here), which count against maxBytes like the contents; a change to a sidecar drops
+// the entry of the file it belongs to.
+//
+// Next to the contents, the cache keeps an index of the whole tree: the attributes of every file
+// and directory below the root and whether they are readable, read when the cache is created and
+// kept up to date by the watcher. As long as the tree fits into maxIndexEntries, lookup() can tell
+// whether a path exists without asking the file system, so a 404 costs no system call. Once it
+// does not, paths missing from the index are looked up on disk, and the misses are remembered in
+// a negative cache of at most maxMisses paths, which the watcher clears as files are created.
+// Paths below a symbolic link to a directory are never answered from the index.
+//
+// The files below the root are opened through an OpenFileCache, whose channels the watcher
+// retires along with the entries, and whose idle channels it closes in between events.
+public class StaticFileCache implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(StaticFileCache.class);
+    // the use counts are halved after this many hits per entry
+    private static final int AGING_HITS_PER_ENTRY = 16;
+    // how often idle open files are looked for
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final Path root;
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final int maxIndexEntries;
+    private final int maxMisses;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Path, FileInfo> index = new ConcurrentHashMap<>();
+    // paths known not to exist, for when the index is incomplete
+    private final Map<Path, Boolean> missing = new ConcurrentHashMap<>();
+    // symbolic links to directories, whose contents are neither indexed nor watched
+    private final Set<Path> linkedDirs = ConcurrentHashMap.newKeySet();
+    // whether a path missing from the index does not exist
+    private volatile boolean indexComplete;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // bumped by every change the watcher reports
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hitsSinceAging = new AtomicLong();
+    private final WatchService watcher;
+    private final OpenFileCache openFiles;
+
+    // A cached file: its contents, when it was last modified, the headers it is served with, and
+    // its contents by content coding ("br", "gzip"). Entries are not changed once cached;
+    // addEncoding() replaces them.
+    public static final class Entry {
+
+        public final byte[] content;
+        public final Instant lastModified;
+        public final Map<String, String> headers;
+        private final Map<String, byte[]> encodings;
+        private final long size;
+        private final AtomicInteger uses;
+        private volatile long lastUsed = System.nanoTime();
+
+        public Entry(byte[] content, Instant lastModified, Map<String, String> headers,
+            Map<String, byte[]> encodings) {
+            this(content, lastModified, Map.copyOf(headers), Map.copyOf(encodings),
+                new AtomicInteger(1));
+        }
+
+        private Entry(byte[] content, Instant lastModified, Map<String, String> headers,
+            Map<String, byte[]> encodings, AtomicInteger uses) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.headers = headers;
+            this.encodings = encodings;
+            this.uses = uses;
+            this.size = content.length
+                + encodings.values().stream().mapToLong(e -> e.length).sum();
+        }
+
+        // The contents in the given coding, or null if there are none.
+        public byte[] encoding(String coding) {
+            return encodings.get(coding);
+        }
+    }
+
+    // The index entry of a path: its attributes (those of the target, for a symbolic link), and
+    // whether it could be read when it was indexed.
+    public static final class FileInfo {
+
+        // lookup() for a path that does not exist
+        public static final FileInfo MISSING = new FileInfo(null, false);
+
+        public final BasicFileAttributes attributes;
+        public final boolean readable;
+
+        FileInfo(BasicFileAttributes attributes, boolean readable) {
+            this.attributes = attributes;
+            this.readable = readable;
+        }
+    }
+
+    public StaticFileCache(Path root, long maxBytes, long maxFileSize, int maxIndexEntries,
+        int maxMisses, OpenFileCache openFiles) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+        this.maxIndexEntries = maxIndexEntries;
+        this.maxMisses = maxMisses;
+        this.openFiles = openFiles;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        indexComplete = add(this.root, Integer.MAX_VALUE);
+        Thread thread = new Thread(this::watch, "static-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Adds the contents of entry, the one cached for file, in another coding. Returns the entry
+    // to use from now on, which is entry itself if that has been dropped in the meantime.
+    public Entry addEncoding(Path file, Entry entry, String coding, byte[] encoded) {
+        Map<String, byte[]> encodings = new HashMap<>(entry.encodings);
+        encodings.put(coding, encoded);
+        Entry replacement = new Entry(entry.content, entry.lastModified, entry.headers,
+            Map.copyOf(encodings), entry.uses);
+        if (replacement.size > maxBytes
+            || !entries.replace(file.toAbsolutePath().normalize(), entry, replacement)) {
+            return entry;
+        }
+        bytes.addAndGet(replacement.size - entry.size);
+        evictToBudget();
+        return replacement;
+    }
+
+    public long maxFileSize() {
+        return maxFileSize;
+    }
+
+    // What the index knows of file: its entry, FileInfo.MISSING if it does not exist, or null if
+    // the file system has to be asked.
+    public FileInfo lookup(Path file) {
+        file = file.toAbsolutePath().normalize();
+        if (!file.startsWith(root) || isBelowLink(file)) {
+            return null;
+        }
+        FileInfo info = index.get(file);
+        if (info != null) {
+            return info;
+        }
+        return indexComplete || missing.containsKey(file) ? FileInfo.MISSING : null;
+    }
+
+    // Remembers that file does not exist, unless the watcher reported a change since generation
+    // was taken. Makes room by dropping another path if needed.
+    public void putMissing(Path file, long generation) {
+        file = file.toAbsolutePath().normalize();
+        if (maxMisses <= 0 || !file.startsWith(root) || isBelowLink(file)
+            || generation != this.generation.get()) {
+            return;
+        }
+        while (missing.size() >= maxMisses) {
+            Iterator<Path> paths = missing.keySet().iterator();
+            if (!paths.hasNext()) {
+                break;
+            }
+            paths.next();
+            paths.remove();
+        }
+        missing.put(file, Boolean.TRUE);
+        if (generation != this.generation.get()) {
+            // the file may have been created while the path went in
+            missing.remove(file);
+        }
+    }
+
+    // A handle on file, opened through the open file cache if file is below the root.
+    public OpenFileCache.Handle open(Path file) throws IOException {
+        Path normalized = file.toAbsolutePath().normalize();
+        if (!normalized.startsWith(root) || isBelowLink(normalized)) {
+            return OpenFileCache.Handle.uncached(file);
+        }
+        return openFiles.open(normalized);
+    }
+
+    public OpenFileCache openFiles() {
+        return openFiles;
+    }
+
+    private boolean isBelowLink(Path file) {
+        for (Path link : linkedDirs) {
+            if (file.startsWith(link) && !file.equals(link)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Taken before a file is read for put(); a change reported in between keeps it out.
+    public long generation() {
+        return generation.get();
+    }
+
+    // The entry for file, or null on a miss.
+    public Entry get(Path file) {
+        Entry entry = entries.get(file.toAbsolutePath().normalize());
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.uses.incrementAndGet();
+        entry.lastUsed = System.nanoTime();
+        if (hitsSinceAging.incrementAndGet() > (long) AGING_HITS_PER_ENTRY * entries.size()) {
+            age();
+        }
+        return entry;
+    }
+
+    // Caches entry for file, unless it is too large or the watcher reported a change since
+    // generation was taken. Makes room by evicting if needed.
+    public void put(Path file, Entry entry, long generation) {
+        if (entry.content.length > maxFileSize || entry.size > maxBytes
+            || generation != this.generation.get()) {
+            return;
+        }
+        file = file.toAbsolutePath().normalize();
+        Entry previous = entries.put(file, entry);
+        bytes.addAndGet(entry.size - (previous != null ? previous.size : 0));
+        if (generation != this.generation.get()) {
+            // the watcher may have missed the entry while it was going in
+            remove(file);
+            return;
+        }
+        evictToBudget();
+    }
+
+    private void evictToBudget() {
+        while (bytes.get() > maxBytes) {
+            if (!evictOne()) {
+                break;
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Bytes of file contents held.
+    public long bytes() {
+        return bytes.get();
+    }
+
+    // Files and directories in the index.
+    public int indexSize() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        entries.clear();
+        bytes.set(0);
+        indexComplete = false;
+        index.clear();
+        missing.clear();
+        openFiles.close();
+    }
+
+    private synchronized boolean evictOne() {
+        Entry victim = null;
+        Path victimPath = null;
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+            Entry candidate = e.getValue();
+            if (victim == null || candidate.uses.get() < victim.uses.get()
+                || candidate.uses.get() == victim.uses.get()
+                && candidate.lastUsed - victim.lastUsed < 0) {
+                victim = candidate;
+                victimPath = e.getKey();
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (entries.remove(victimPath, victim)) {
+            bytes.addAndGet(-victim.size);
+            evictions.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void age() {
+        hitsSinceAging.set(0);
+        for (Entry entry : entries.values()) {
+            entry.uses.set(entry.uses.get() >> 1);
+        }
+    }
+
+    private void remove(Path file) {
+        Entry removed = entries.remove(file);
+        if (removed != null) {
+            bytes.addAndGet(-removed.size);
+        }
+    }
+
+    // Drops file and, if it was a directory, everything cached below it. A sidecar takes the
+    // file it belongs to along.
+    private void invalidate(Path file) {
+        generation.incrementAndGet();
+        openFiles.invalidate(file);
+        remove(file);
+        String name = file.getFileName() != null ? file.getFileName().toString() : "";
+        if (name.endsWith(".gz") || name.endsWith(".br")) {
+            remove(file.resolveSibling(name.substring(0, name.length() - 3)));
+        }
+        for (Path cached : entries.keySet()) {
+            if (cached.startsWith(file)) {
+                remove(cached);
+            }
+        }
+    }
+
+    // Indexes path and, down to maxDepth, everything below it, and watches the directories among
+    // them; a WatchService only reports changes to the entries of the directories it was
+    // registered for. Returns false if anything could not be read or did not fit into the index.
+    private boolean add(Path path, int maxDepth) throws IOException {
+        boolean[] complete = {true};
+        Files.walkFileTree(path, Set.of(), maxDepth, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                throws IOException {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                complete[0] &= addToIndex(dir, attributes);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                complete[0] &= addToIndex(file, attributes);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.warn("Cannot index " + file + ": " + e.getLocalizedMessage());
+                complete[0] = false;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return complete[0];
+    }
+
+    // attributes are those of path itself, which may be a symbolic link.
+    private boolean addToIndex(Path path, BasicFileAttributes attributes) {
+        if (attributes.isSymbolicLink()) {
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // a dangling link is served as a missing file
+                index.remove(path);
+                return true;
+            }
+            if (attributes.isDirectory()) {
+                linkedDirs.add(path);
+            }
+        }
+        if (!index.containsKey(path) && index.size() >= maxIndexEntries) {
+            return false;
+        }
+        index.put(path, new FileInfo(attributes, Files.isReadable(path)));
+        return true;
+    }
+
+    // Brings the index up to date with a change the watcher reported for path. A new directory is
+    // indexed with everything in it, since it may have been moved in whole.
+    private void reindex(Path path, WatchEvent.Kind<?> kind) {
+        missing.keySet().removeIf(p -> p.startsWith(path));
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            FileInfo removed = index.remove(path);
+            if (removed == null || removed.attributes.isDirectory()) {
+                index.keySet().removeIf(p -> p.startsWith(path));
+                linkedDirs.removeIf(p -> p.startsWith(path));
+            }
+            return;
+        }
+        try {
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS) && !add(path,
+                kind == StandardWatchEventKinds.ENTRY_CREATE ? Integer.MAX_VALUE : 0)) {
+                indexComplete = false;
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot index " + path + ": " + e.getLocalizedMessage());
+            indexComplete = false;
+        }
+    }
+
+    // Builds the index anew, after the watcher lost events.
+    private void reindexAll() {
+        indexComplete = false;
+        index.clear();
+        missing.clear();
+        linkedDirs.clear();
+        try {
+            indexComplete = add(root, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            logger.warn("Cannot index " + root + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                openFiles.closeIdle();
+                if (key == null) {
+                    continue;
+                }
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, so nothing cached can be trusted
+                        invalidate(root);
+                        reindexAll();
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    invalidate(changed);
+                    reindex(changed, event.kind());
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the cache was closed
+        }
+    }
+}
@@ -3,80 +3,492 @@ package cis5550.webserver.model;
 import cis5550.webserver.HTTPMessage;
 import cis5550.webserver.Request;
 import cis5550.webserver.ResponseImpl;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
+// Serves the files below one root. Whole files are not read here: the response only names the
+// file, whose length comes from its metadata, and the transport sends it when the response goes
+// out (see Response.bodyAsFile). Small files are the exception when there is a cache; they are
+// read once and then served from memory until they change. Metadata comes from the index of the
+// cache where it has the path (see StaticFileCache.lookup), so that neither a hit nor a 404 has
+// to touch the disk before the body goes out.
+//
+// A Range request gets its single range as a region of the file, or several ranges as a
+// multipart/byteranges body whose parts are sent from the file one after the other; either way
+// only the requested bytes are read, so seeking through a large file costs nothing extra.
+//
+// Compressible types are sent in the best content coding the client accepts: from a .br or .gz
+// sidecar next to the file, if there is one that is not older than the file, or else gzipped
+// here, but only for cached files, whose compressed contents are cached along with them. Larger
+// files without sidecars go out as they are.
+//
+// Every response carries a strong ETag (one per representation) and Last-Modified, and the
+// conditional headers are honoured: a revalidation that matches gets 304 from the metadata
+// alone, without the file being opened.
 public class StaticFileRequestHandler {
 
-    public static Object serve(Request request, cis5550.webserver.Response response, Path root) {
-        ResponseImpl.Status responseStatus = validate(request, root);
-        byte[] body;
+    // Range headers asking for more parts are ignored; a flood of tiny ranges costs more to frame
+    // than the file itself
+    private static final int MAX_RANGES = 64;
+    // content codings served, the preferred one first
+    private static final List<String> CODINGS = List.of("br", "gzip");
+    // smaller files are not worth gzipping
+    private static final int MIN_GZIP_SIZE = 256;
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+        Map.entry(".htm", "text/html"),
+        Map.entry(".html", "text/html"),
+        Map.entry(".txt", "text/plain"),
+        Map.entry(".css", "text/css"),
+        Map.entry(".csv", "text/csv"),
+        Map.entry(".md", "text/markdown"),
+        Map.entry(".js", "application/javascript"),
+        Map.entry(".mjs", "application/javascript"),
+        Map.entry(".json", "application/json"),
+        Map.entry(".map", "application/json"),
+        Map.entry(".xml", "application/xml"),
+        Map.entry(".wasm", "application/wasm"),
+        Map.entry(".svg", "image/svg+xml"),
+        Map.entry(".ico", "image/x-icon"),
+        Map.entry(".jpg", "image/jpeg"),
+        Map.entry(".jpeg", "image/jpeg"),
+        Map.entry(".png", "image/png"),
+        Map.entry(".gif", "image/gif"),
+        Map.entry(".webp", "image/webp"),
+        Map.entry(".avif", "image/avif"),
+        Map.entry(".woff", "font/woff"),
+        Map.entry(".woff2", "font/woff2"),
+        Map.entry(".pdf", "application/pdf"),
+        Map.entry(".zip", "application/zip"),
+        Map.entry(".gz", "application/gzip"),
+        Map.entry(".mp3", "audio/mpeg"),
+        Map.entry(".mp4", "video/mp4"),
+        Map.entry(".webm", "video/webm"));
+    // besides text/*; the other types are compressed already
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of("application/javascript",
+        "application/json", "application/xml", "application/wasm", "image/svg+xml",
+        "image/x-icon");
+
+    private final Path root;
+    // null if caching is off
+    private final StaticFileCache cache;
+    // null to send none
+    private final String cacheControl;
+    private final boolean contentHashETags;
+
+    // With contentHashETags, the ETag of a file small enough for the cache is a hash of its
+    // contents, and such a file is read into the cache even for a HEAD request; all other files
+    // are tagged by size, modification time and inode.
+    public StaticFileRequestHandler(Path root, StaticFileCache cache, String cacheControl,
+        boolean contentHashETags) {
+        this.root = root;
+        this.cache = cache;
+        this.cacheControl = cacheControl;
+        this.contentHashETags = contentHashETags;
+    }
+
+    public StaticFileCache cache() {
+        return cache;
+    }
+
+    // Works out the metadata of the file (from the cache, or from its attributes), then the
+    // representation to send and its validators, and then the preconditions, in the order of
+    // RFC 9110 13.2.2, so that a revalidation is answered before any of the file is read.
+    public Object serve(Request request, cis5550.webserver.Response response) {
+        Path requestedFile = root.resolve("./" + request.url());
+        long generation = cache != null ? cache.generation() : 0;
+        StaticFileCache.Entry cached = cache != null ? cache.get(requestedFile) : null;
         response.header("Server", "CIS5550/HW1 Spring 2023 Zhiyuan Wu");
-        if (200 <= responseStatus.code && responseStatus.code < 300) {
-            try {
-                Path requestedFile = root.resolve("./" + request.url());
-                body = Files.readAllBytes(requestedFile);
-                if (responseStatus == ResponseImpl.Status.PARTIAL_CONTENT) {
-                    final byte[] file = body;
-                    final int len = body.length;
-                    List<int[]> ranges =
-                        Arrays.stream(request.headers("Range").split("=", 2)[1].trim().split(","))
-                            .map(r -> r.split("-", 2)).map(r -> {
-                                int start, end;
-                                try {
-                                    start = !r[0].isBlank() ? Integer.parseInt(r[0].trim()) : 0;
-                                    end = !r[1].isBlank() ? Integer.parseInt(r[1].trim()) : len;
-                                } catch (NumberFormatException e) {
-                                    start = -1;
-                                    end = -1;
-                                }
-                                return new int[]{start, end};
-                            }).toList();
-                    if (ranges.stream().anyMatch(
-                        r -> r[0] < 0 || r[1] < 0 || r[0] > len || r[1] > len || r[0] > r[1])) {
-                        throw new IndexOutOfBoundsException();
-                    }
-                    body = new byte[ranges.stream().mapToInt(r -> r[1] - r[0]).sum()];
-                    ByteBuffer buf = ByteBuffer.wrap(body);
-                    ranges.forEach(r -> buf.put(Arrays.copyOfRange(file, r[0], r[1])));
+        ResponseImpl.Status status = validate(request);
+        if (status != ResponseImpl.Status.OK) {
+            return error(response, status);
+        }
+        try {
+            // null while the body is the file itself
+            byte[] body = null;
+            long fileSize;
+            Instant lastModified;
+            Map<String, String> headers;
+            if (cached != null) {
+                body = cached.content;
+                fileSize = body.length;
+                lastModified = cached.lastModified;
+                headers = cached.headers;
+            } else {
+                BasicFileAttributes attributes = attributes(requestedFile);
+                if (!attributes.isRegularFile()) {
+                    throw new IOException("Not a regular file: " + requestedFile);
                 }
-                String ext = requestedFile.getFileName().toString();
-                int extIdx = ext.lastIndexOf('.');
-                ext = extIdx >= 0 ? ext.substring(extIdx).toLowerCase() : "";
-                switch (ext) {
-                    case ".jpg", ".jpeg" -> response.header("Content-Type", "image/jpeg");
-                    case ".txt" -> response.header("Content-Type", "text/plain");
-                    case ".htm", ".html" -> response.header("Content-Type", "text/html");
-                    default -> response.header("Content-Type", "application/octet-stream");
+                fileSize = attributes.size();
+                lastModified = attributes.lastModifiedTime().toInstant();
+                String contentType = contentType(requestedFile);
+                boolean cacheable = cache != null && fileSize <= cache.maxFileSize();
+                boolean hashed = cacheable && contentHashETags;
+                if (cacheable && (hashed || !"HEAD".equals(request.requestMethod()))) {
+                    body = Files.readAllBytes(requestedFile);
+                    fileSize = body.length;
+                    headers = fileHeaders(contentType, lastModified,
+                        hashed ? contentTag(body) : metadataTag(attributes));
+                    cached = new StaticFileCache.Entry(body, lastModified, headers,
+                        isCompressible(contentType)
+                            ? readSidecars(requestedFile, attributes.lastModifiedTime())
+                            : Map.of());
+                    cache.put(requestedFile, cached, generation);
+                } else {
+                    headers = fileHeaders(contentType, lastModified, metadataTag(attributes));
                 }
-            } catch (IOException e) {
-                // should not be reachable - already checked in `validate`
-                responseStatus = ResponseImpl.Status.FORBIDDEN;
-                body = responseStatus.toString().getBytes();
-            } catch (IndexOutOfBoundsException e) {
-                responseStatus = ResponseImpl.Status.RANGE_NOT_SATISFIABLE;
-                body = responseStatus.toString().getBytes();
             }
-        } else {
-            body = responseStatus.toString().getBytes();
+            String contentType = headers.get("Content-Type");
+            String etag = headers.get("ETag");
+            String range = request.headers("Range");
+            boolean ranged = range != null
+                && ifRangeHolds(request.headers("If-Range"), etag, lastModified);
+
+            // ranges are served from the file as it is; everything else may be encoded
+            Path sentFile = requestedFile;
+            String coding = null;
+            boolean compressible = isCompressible(contentType);
+            if (compressible && !ranged) {
+                for (String accepted : acceptedCodings(request.headers("Accept-Encoding"))) {
+                    if (cached != null) {
+                        byte[] encoded = encode(requestedFile, cached, accepted);
+                        if (encoded != null) {
+                            body = encoded;
+                            fileSize = encoded.length;
+                            coding = accepted;
+                            break;
+                        }
+                    } else {
+                        BasicFileAttributes sidecar = sidecarAttributes(requestedFile, accepted,
+                            FileTime.from(lastModified));
+                        if (sidecar != null) {
+                            sentFile = sidecarPath(requestedFile, accepted);
+                            fileSize = sidecar.size();
+                            coding = accepted;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (coding != null) {
+                // every representation has a tag of its own
+                etag = etag.substring(0, etag.length() - 1) + "-" + coding + '"';
+            }
+
+            status = evaluatePreconditions(request, etag, lastModified);
+            if (status == ResponseImpl.Status.PRECONDITION_FAILED) {
+                return error(response, status);
+            }
+            response.header("ETag", etag);
+            response.header("Last-Modified", headers.get("Last-Modified"));
+            if (cacheControl != null) {
+                response.header("Cache-Control", cacheControl);
+            }
+            if (compressible) {
+                response.header("Vary", "Accept-Encoding");
+            }
+            if (status == ResponseImpl.Status.NOT_MODIFIED) {
+                // no body; the validators above are all the client needs
+                response.status(status);
+                return null;
+            }
+            response.header("Content-Type", contentType);
+            if (coding != null) {
+                response.header("Content-Encoding", coding);
+            }
+
+            long offset = 0;
+            long length = fileSize;
+            List<long[]> ranges = ranged ? parseRanges(range, fileSize) : null;
+            if (ranges != null && ranges.isEmpty()) {
+                response.header("Content-Range", "bytes */" + fileSize);
+                return error(response, ResponseImpl.Status.RANGE_NOT_SATISFIABLE);
+            }
+            response.status(ranges != null ? ResponseImpl.Status.PARTIAL_CONTENT : status);
+            if (ranges != null && ranges.size() > 1) {
+                // several parts go out from the file, even if it is cached
+                response.bodyAsFileRanges(requestedFile, contentType, fileSize, ranges);
+                return null;
+            }
+            if (ranges != null) {
+                offset = ranges.get(0)[0];
+                length = ranges.get(0)[1];
+                response.header("Content-Range", "bytes " + offset + "-"
+                    + (offset + length - 1) + "/" + fileSize);
+            }
+            if (body != null) {
+                response.bodyAsBytes(length == body.length ? body
+                    : Arrays.copyOfRange(body, (int) offset, (int) (offset + length)));
+            } else {
+                response.bodyAsFile(sentFile, offset, length);
+            }
+        } catch (NoSuchFileException e) {
+            return error(response, ResponseImpl.Status.NOT_FOUND);
+        } catch (IOException e) {
+            // a directory, a file that cannot be read, or one that went away while being read
+            return error(response, ResponseImpl.Status.FORBIDDEN);
         }
-        response.status(responseStatus);
-        response.bodyAsBytes(body);
         return null;
     }
 
-    public static ResponseImpl.Status validate(Request request, Path root) {
+    // The attributes of file, from the index of the cache if it knows them; a file that does not
+    // exist or cannot be read fails as reading it would.
+    private BasicFileAttributes attributes(Path file) throws IOException {
+        StaticFileCache.FileInfo info = cache != null ? cache.lookup(file) : null;
+        if (info == StaticFileCache.FileInfo.MISSING) {
+            throw new NoSuchFileException(file.toString());
+        }
+        if (info != null) {
+            if (!info.readable) {
+                throw new AccessDeniedException(file.toString());
+            }
+            return info.attributes;
+        }
+        long generation = cache != null ? cache.generation() : 0;
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            if (cache != null) {
+                cache.putMissing(file, generation);
+            }
+            throw e;
+        }
+        if (!Files.isReadable(file)) {
+            throw new AccessDeniedException(file.toString());
+        }
+        return attributes;
+    }
+
+    private static Object error(cis5550.webserver.Response response, ResponseImpl.Status status) {
+        response.status(status);
+        response.bodyAsBytes(status.toString().getBytes());
+        return null;
+    }
+
+    // The headers a file is served with, whatever the request: Content-Type and validators.
+    private static Map<String, String> fileHeaders(String contentType, Instant lastModified,
+        String etag) {
+        return Map.of("Content-Type", contentType,
+            "Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                lastModified.atOffset(ZoneOffset.UTC)),
+            "ETag", etag);
+    }
+
+    // A strong validator from the file's size, modification time and inode; a file replaced by
+    // another of the same size within the same clock tick still gets a new tag.
+    private static String metadataTag(BasicFileAttributes attributes) {
+        return '"' + Long.toHexString(attributes.size()) + "-"
+            + Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)) + "-"
+            + Integer.toHexString(Objects.hashCode(attributes.fileKey())) + '"';
+    }
+
+    // A strong validator from the contents, the same wherever the file is deployed.
+    private static String contentTag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return '"' + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Arrays.copyOf(digest, 16)) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing", e);
+        }
+    }
+
+    // The contents of a cached file in coding: its sidecar, or for gzip, its contents compressed
+    // here once and then kept in the cache. Null if there is no such encoding, or it would not be
+    // smaller.
+    private byte[] encode(Path file, StaticFileCache.Entry entry, String coding)
+        throws IOException {
+        byte[] encoded = entry.encoding(coding);
+        if (encoded == null && coding.equals("gzip") && entry.content.length >= MIN_GZIP_SIZE) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(entry.content.length / 4);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                gzip.write(entry.content);
+            }
+            // an empty array remembers that compressing did not pay off
+            encoded = out.size() < entry.content.length ? out.toByteArray() : new byte[0];
+            if (cache != null) {
+                cache.addEncoding(file, entry, coding, encoded);
+            }
+        }
+        return encoded != null && encoded.length > 0 ? encoded : null;
+    }
+
+    // The fresh sidecars of a file small enough to be cached, by coding.
+    private Map<String, byte[]> readSidecars(Path file, FileTime lastModified) {
+        Map<String, byte[]> sidecars = new HashMap<>();
+        for (String coding : CODINGS) {
+            BasicFileAttributes attributes = sidecarAttributes(file, coding, lastModified);
+            if (attributes != null && attributes.size() <= cache.maxFileSize()) {
+                try {
+                    sidecars.put(coding, Files.readAllBytes(sidecarPath(file, coding)));
+                } catch (IOException e) {
+                    // gone in the meantime; the file is served without it
+                }
+            }
+        }
+        return sidecars;
+    }
+
+    // The attributes of the sidecar holding file in coding, or null if there is none or it is
+    // older than the file itself, and so possibly out of date.
+    private BasicFileAttributes sidecarAttributes(Path file, String coding,
+        FileTime lastModified) {
+        try {
+            BasicFileAttributes attributes = attributes(sidecarPath(file, coding));
+            return attributes.isRegularFile()
+                && attributes.lastModifiedTime().compareTo(lastModified) >= 0 ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Path sidecarPath(Path file, String coding) {
+        return file.resolveSibling(file.getFileName() + (coding.equals("br") ? ".br" : ".gz"));
+    }
+
+    // The codings of CODINGS the Accept-Encoding header allows, in the order of CODINGS.
+    static List<String> acceptedCodings(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return List.of();
+        }
+        Map<String, Double> qualities = new HashMap<>();
+        for (String item : acceptEncoding.split(",")) {
+            String[] parameters = item.split(";");
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            qualities.put(parameters[0].trim().toLowerCase(Locale.ROOT), quality);
+        }
+        List<String> accepted = new ArrayList<>(CODINGS.size());
+        for (String coding : CODINGS) {
+            Double quality = qualities.getOrDefault(coding, qualities.get("*"));
+            if (quality != null && quality > 0) {
+                accepted.add(coding);
+            }
+        }
+        return accepted;
+    }
+
+    static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || COMPRESSIBLE_TYPES.contains(contentType);
+    }
+
+    // The satisfiable ranges of a Range header as {offset, length}, in the order they were asked
+    // for. Returns an empty list if none of them is satisfiable, and null if the header is to be
+    // ignored: a unit other than bytes, bad syntax, or more than MAX_RANGES ranges.
+    static List<long[]> parseRanges(String header, long fileSize) {
+        int equals = header.indexOf('=');
+        if (equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase("bytes")) {
+            return null;
+        }
+        String[] specs = header.substring(equals + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // the final bytes of the file
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = Math.max(0, fileSize - suffix);
+                    end = suffix > 0 ? fileSize - 1 : -1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    // a start at or past the end of the file is unsatisfiable, not malformed
+                    end = Math.min(end, fileSize - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < fileSize && end >= start) {
+                ranges.add(new long[]{start, end - start + 1});
+            }
+        }
+        return ranges;
+    }
+
+    static String contentType(Path file) {
+        String ext = file.getFileName().toString();
+        int extIdx = ext.lastIndexOf('.');
+        ext = extIdx >= 0 ? ext.substring(extIdx).toLowerCase() : "";
+        return CONTENT_TYPES.getOrDefault(ext, "application/octet-stream");
+    }
+
+    // The checks that need nothing but the request; whether the file exists and can be read is
+    // found out along with its attributes, and the preconditions once the representation is known.
+    public static ResponseImpl.Status validate(Request request) {
+        ResponseImpl.Status status = validateRequest(request);
+        if (status != null) {
+            return status;
+        }
+        if (request.url().contains("..")) {
+            return ResponseImpl.Status.FORBIDDEN;
+        }
+        return ResponseImpl.Status.OK;
+    }
+
+    // validate() but for "..", null if the request passes.
+    private static ResponseImpl.Status validateRequest(Request request) {
         if (request.requestMethod() == null || request.url() == null || request.protocol() == null
             || !request.headers().contains("Host")) {
             return ResponseImpl.Status.BAD_REQUEST;
         }
-        if (!request.protocol().equalsIgnoreCase(HTTPMessage.HTTPVersion.HTTP1_1.versionString)) {
+        if (Arrays.stream(HTTPMessage.HTTPVersion.values())
+            .noneMatch(v -> v.versionString.equalsIgnoreCase(request.protocol()))) {
             return ResponseImpl.Status.HTTP_VERSION_NOT_SUPPORTED;
         }
         if (!List.of("GET", "HEAD", "POST", "PUT").contains(request.requestMethod())) {
@@ -85,28 +497,82 @@ public class StaticFileRequestHandler {
         if (List.of("POST", "PUT").contains(request.requestMethod())) {
             return ResponseImpl.Status.NOT_ALLOWED;
         }
-        Path requestedFile = root.resolve("./" + request.url());
-        if (!Files.exists(requestedFile)) {
-            return ResponseImpl.Status.NOT_FOUND;
-        }
-        if (request.url().contains("..") || !Files.isReadable(requestedFile)) {
-            return ResponseImpl.Status.FORBIDDEN;
+        return null;
+    }
+
+    // If-Match and If-Unmodified-Since, then If-None-Match and If-Modified-Since, as RFC 9110
+    // 13.2.2 orders them. Dates have a resolution of one second, so the modification time is
+    // compared truncated to the second; dates that do not parse are ignored.
+    static ResponseImpl.Status evaluatePreconditions(Request request, String etag,
+        Instant lastModified) {
+        Instant modified = lastModified.truncatedTo(ChronoUnit.SECONDS);
+        String ifMatch = request.headers("If-Match");
+        if (ifMatch != null) {
+            if (!matches(ifMatch, etag, true)) {
+                return ResponseImpl.Status.PRECONDITION_FAILED;
+            }
+        } else {
+            Instant ifUnmodifiedSince = parseDate(request.headers("If-Unmodified-Since"));
+            if (ifUnmodifiedSince != null && modified.isAfter(ifUnmodifiedSince)) {
+                return ResponseImpl.Status.PRECONDITION_FAILED;
+            }
         }
-        try {
-            String ifModifiedSince = request.headers("If-Modified-Since");
-            if (ifModifiedSince != null &&
-                Files.getLastModifiedTime(requestedFile).toInstant().compareTo(
-                    Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(ifModifiedSince)))
-                    < 0) {
+        String ifNoneMatch = request.headers("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (matches(ifNoneMatch, etag, false)) {
+                return ResponseImpl.Status.NOT_MODIFIED;
+            }
+        } else {
+            Instant ifModifiedSince = parseDate(request.headers("If-Modified-Since"));
+            if (ifModifiedSince != null && !modified.isAfter(ifModifiedSince)) {
                 return ResponseImpl.Status.NOT_MODIFIED;
             }
-        } catch (IOException e) {
-            return ResponseImpl.Status.FORBIDDEN;
-        }
-        String range = request.headers("Range");
-        if (range != null && !range.split("=", 2)[0].trim().equals("bytes")) {
-            return ResponseImpl.Status.PARTIAL_CONTENT;
         }
         return ResponseImpl.Status.OK;
     }
+
+    // Whether the Range header applies: there is no If-Range, or it names the current
+    // representation by its strong tag or its exact modification date.
+    private static boolean ifRangeHolds(String ifRange, String etag, Instant lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        Instant date = parseDate(ifRange);
+        return date != null && date.equals(lastModified.truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    // Whether a list of entity tags (or "*") matches etag; the weak comparison ignores W/.
+    private static boolean matches(String tags, String etag, boolean strong) {
+        if (tags.trim().equals("*")) {
+            return true;
+        }
+        for (String tag : tags.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                if (strong) {
+                    continue;
+                }
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Instant parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(date.trim()));
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package cis5550.webserver.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One listening socket with its own acceptor thread and worker pool. Several shards can listen on
+// the same port with SO_REUSEPORT; the kernel then spreads incoming connections across them, so
+// no single accept() loop becomes the bottleneck during a connection storm. Each shard counts what
+// it accepts, which shows whether the spread is even.
+public final class AcceptorShard {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final ServerSocket socket;
+    private final Executor workers;
+    private final AtomicLong accepted = new AtomicLong();
+    // accepts per second over the last complete window; only written by the acceptor thread
+    private long windowStart = System.nanoTime();
+    private long windowAccepted = 0;
+    private volatile double lastRate = 0;
+    private volatile long lastWindowEnd = windowStart;
+
+    public AcceptorShard(String name, ServerSocket socket, Executor workers) {
+        this.name = name;
+        this.socket = socket;
+        this.workers = workers;
+    }
+
+    // Opens a listening socket on the port; with reusePort, other shards may bind the same port.
+    // The socket is backed by a channel, and so is every connection it accepts, which lets
+    // responses go out with gathering writes (see ChannelOutputStream).
+    public static ServerSocket listen(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        return channel.socket();
+    }
+
+    public static boolean isReusePortSupported() {
+        try (ServerSocket socket = new ServerSocket()) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public ServerSocket socket() {
+        return socket;
+    }
+
+    public Executor workers() {
+        return workers;
+    }
+
+    // Called by the acceptor thread for every accepted connection.
+    public void onAccept() {
+        accepted.incrementAndGet();
+        windowAccepted++;
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            lastRate = windowAccepted * (double) WINDOW_NANOS / (now - windowStart);
+            lastWindowEnd = now;
+            windowStart = now;
+            windowAccepted = 0;
+        }
+    }
+
+    public long accepted() {
+        return accepted.get();
+    }
+
+    // Connections accepted per second, measured over the most recent window of at least a second.
+    public double acceptRate() {
+        // the window only closes on an accept, so a shard that has gone quiet reads as 0
+        return System.nanoTime() - lastWindowEnd > 2 * WINDOW_NANOS ? 0 : lastRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (port %d): %d accepted, %.1f/s", name, socket.getLocalPort(),
+            accepted(), acceptRate());
+    }
+}
@@ -0,0 +1,193 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import cis5550.webserver.Response.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides whether there is room for more work, so that an overloaded server turns requests away
+// with a fast 503 instead of queueing them until everything times out. Three checks:
+//  - a cap on connections served at once, checked when a connection is accepted;
+//  - a bounded dispatch queue in front of the workers (see Server.dispatchQueueCapacity);
+//  - a CoDel-style check on the time work spends waiting for a worker. While the shortest wait
+//    seen during the last interval stays above the target delay, the queue is standing rather
+//    than absorbing a burst, and anything that waited longer than the target is shed. Otherwise
+//    only work that waited longer than a whole interval is shed.
+public final class AdmissionController {
+
+    public static final int RETRY_AFTER_SECONDS = 1;
+    private static final Logger logger = Logger.getLogger(AdmissionController.class);
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 " + Status.SERVICE_UNAVAILABLE
+        + "\r\nRetry-After: " + RETRY_AFTER_SECONDS + "\r\nContent-Length: 0\r\n"
+        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxConcurrent;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    // guarded by this
+    private long intervalStart = System.nanoTime();
+    private long minDelayInInterval = Long.MAX_VALUE;
+    private boolean overloaded = false;
+
+    public AdmissionController(int maxConcurrent, long targetDelayMillis, long intervalMillis) {
+        this.maxConcurrent = maxConcurrent;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetDelayMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    // Takes a connection slot; every successful call has to be paired with release().
+    public boolean tryAcquire() {
+        if (maxConcurrent <= 0) {
+            concurrent.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int current = concurrent.get();
+            if (current >= maxConcurrent) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (concurrent.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        concurrent.decrementAndGet();
+    }
+
+    // Hands work to a worker pool, or sheds it (shed runs instead of work) if the pool is too
+    // backed up to get to it in time. Work that waited too long at the head of the pool's queue is
+    // shed right here as well, since a pool whose workers are all tied up would never get to it.
+    public void dispatch(Executor workers, Runnable work, Runnable shed) {
+        if (workers instanceof ThreadPoolExecutor pool) {
+            shedStale(pool.getQueue());
+        }
+        try {
+            workers.execute(new Queued(work, shed));
+        } catch (RejectedExecutionException e) {
+            // the bounded dispatch queue is full
+            rejected.incrementAndGet();
+            shed.run();
+        }
+    }
+
+    private void shedStale(BlockingQueue<Runnable> queue) {
+        while (queue.peek() instanceof Queued head && !admit(head.enqueued)) {
+            // a worker may have taken it in the meantime; then the worker sheds it
+            if (queue.remove(head)) {
+                head.shed.run();
+            }
+        }
+    }
+
+    // Whether work queued at enqueuedNanos (System.nanoTime()) may still run. Every call is a
+    // sample of the queue delay for the CoDel state.
+    private boolean admit(long enqueuedNanos) {
+        if (targetNanos <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long delay = now - enqueuedNanos;
+        long allowed;
+        synchronized (this) {
+            if (now - intervalStart >= 2 * intervalNanos) {
+                // nothing was queued for a while: start over instead of judging a whole quiet
+                // stretch by this one sample, e.g. the first request after startup
+                minDelayInInterval = Long.MAX_VALUE;
+                intervalStart = now;
+            }
+            minDelayInInterval = Math.min(minDelayInInterval, delay);
+            if (now - intervalStart >= intervalNanos) {
+                boolean wasOverloaded = overloaded;
+                overloaded = minDelayInInterval > targetNanos;
+                if (overloaded != wasOverloaded) {
+                    logger.warn(overloaded ? "Dispatch queue delay above "
+                        + TimeUnit.NANOSECONDS.toMillis(targetNanos) + "ms, shedding load"
+                        : "Dispatch queue delay back under target");
+                }
+                minDelayInInterval = Long.MAX_VALUE;
+                intervalStart = now;
+            }
+            allowed = overloaded ? targetNanos : intervalNanos;
+        }
+        if (delay > allowed) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public int concurrent() {
+        return concurrent.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public synchronized boolean isOverloaded() {
+        return overloaded;
+    }
+
+    private final class Queued implements Runnable {
+
+        final long enqueued = System.nanoTime();
+        final Runnable work;
+        final Runnable shed;
+
+        Queued(Runnable work, Runnable shed) {
+            this.work = work;
+            this.shed = shed;
+        }
+
+        @Override
+        public void run() {
+            if (admit(enqueued)) {
+                work.run();
+            } else {
+                shed.run();
+            }
+        }
+    }
+
+    // Answers 503 with Retry-After on a connection that is not going to be served.
+    public static void writeServiceUnavailable(OutputStream outputStream) throws IOException {
+        outputStream.write(SERVICE_UNAVAILABLE);
+        outputStream.flush();
+    }
+
+    // Turns a connection away without serving it. Unread request bytes are drained first so that
+    // closing does not reset the connection before the client has read the 503. Connections to a
+    // secure port are just closed: the listeners accept plain sockets and do TLS themselves, and
+    // answering would take a handshake.
+    public static void reject(Socket socket, boolean secure) {
+        try (socket) {
+            if (secure) {
+                return;
+            }
+            writeServiceUnavailable(socket.getOutputStream());
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            int available = in.available();
+            if (available > 0) {
+                in.skipNBytes(available);
+            }
+        } catch (IOException e) {
+            logger.debug(e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package cis5550.webserver.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+// Buffered output for a blocking channel, in place of a BufferedOutputStream over the socket's
+// stream. Small writes and small responses collect in the buffer, so pipelined responses still
+// leave in one write on flush(); a response that does not fit goes out right away as a single
+// writev of whatever is buffered, its head and its body, with the body never copied. A file body
+// follows its head with sendfile.
+public final class ChannelOutputStream extends OutputStream implements GatheringOutput {
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public ChannelOutputStream(GatheringByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= buffer.remaining()) {
+            buffer.put(b, off, len);
+        } else if (len < buffer.capacity()) {
+            flush();
+            buffer.put(b, off, len);
+        } else {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    @Override
+    public void writeGathered(ByteBuffer head, byte[] body) throws IOException {
+        if (head.remaining() + body.length <= buffer.remaining()) {
+            buffer.put(head);
+            buffer.put(body);
+        } else {
+            writeFully(head, ByteBuffer.wrap(body));
+        }
+    }
+
+    @Override
+    public void writeFile(ByteBuffer head, FileChannel file, long position, long count)
+        throws IOException {
+        writeFully(head);
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent == 0 && position >= file.size()) {
+                throw new IOException("File shrank while being sent");
+            }
+            position += sent;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer.position() > 0) {
+            writeFully();
+        }
+    }
+
+    // Writes the buffered bytes followed by the given buffers, in as few system calls as the
+    // channel allows.
+    private void writeFully(ByteBuffer... more) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[more.length + 1];
+        buffers[0] = buffer.flip();
+        System.arraycopy(more, 0, buffers, 1, more.length);
+        int first = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,313 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Tracks every open connection, whatever transport it came in on, and closes the ones that
+// overstay: keep-alive connections idle for longer than the idle timeout, requests whose head and
+// body take longer than the header timeout to arrive (slow or half-open clients), and connections
+// past their maximum lifetime. Once more connections are open than the budget allows, the least
+// recently active connections that are not in the middle of a request are closed first. A timeout
+// or limit of 0 disables it.
+//
+// On shutdown, drain() winds the connections down gracefully: idle ones are closed right away,
+// the others as soon as their current request is done (beginRequest() returns false from then on,
+// so the response says "Connection: close"); awaitDrained() waits for that up to a deadline, and
+// closeAll() cuts off whatever is still open after it.
+public final class ConnectionManager implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ConnectionManager.class);
+    private final long idleTimeoutNanos;
+    private final long headerTimeoutNanos;
+    private final long maxLifetimeNanos;
+    private final int maxRequests;
+    private final int maxConnections;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService reaper;
+    private volatile boolean draining = false;
+
+    public ConnectionManager(long idleTimeoutMillis, long headerTimeoutMillis,
+        long maxLifetimeMillis, int maxRequests, int maxConnections) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.headerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(headerTimeoutMillis);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+        this.maxRequests = maxRequests;
+        this.maxConnections = maxConnections;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // timeouts are enforced with a granularity of a quarter of the shortest one, at most 1s
+        long period = 1000;
+        for (long timeout : new long[]{idleTimeoutMillis, headerTimeoutMillis, maxLifetimeMillis}) {
+            if (timeout > 0) {
+                period = Math.min(period, Math.max(timeout / 4, 10));
+            }
+        }
+        reaper.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Starts tracking a connection; closing the channel has to make whoever serves the connection
+    // give up on it. May close another (or this) connection right away to stay within the budget.
+    public Connection register(Closeable channel, SocketAddress remoteAddr) {
+        Connection connection = new Connection(channel, remoteAddr);
+        connections.add(connection);
+        if (maxConnections > 0 && connections.size() > maxConnections) {
+            evictLeastRecentlyActive();
+        }
+        return connection;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    // Number of connections in the middle of a request.
+    public int busy() {
+        int busy = 0;
+        for (Connection connection : connections) {
+            if (connection.state == State.BUSY) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    // Starts a graceful shutdown of every connection; new ones should not be accepted anymore.
+    public void drain() {
+        draining = true;
+        logger.info("Draining " + connections.size() + " connection(s)");
+        for (Connection connection : connections) {
+            Runnable onDrain = connection.onDrain;
+            if (onDrain != null) {
+                onDrain.run();
+            }
+            connection.closeIfIdle();
+        }
+    }
+
+    // Waits until every connection is gone or the timeout has passed, logging progress once a
+    // second. Returns whether all connections were drained.
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long nextReport = System.nanoTime();
+        synchronized (connections) {
+            while (!connections.isEmpty()) {
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    return false;
+                }
+                if (now - nextReport >= 0) {
+                    logger.info("Draining: " + connections.size() + " connection(s) left, "
+                        + busy() + " busy, "
+                        + TimeUnit.NANOSECONDS.toMillis(deadline - now) + "ms to go");
+                    nextReport = now + TimeUnit.SECONDS.toNanos(1);
+                }
+                connections.wait(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(
+                    Math.min(deadline, nextReport) - now), 1000)));
+            }
+        }
+        return true;
+    }
+
+    // Closes every connection, whether or not a request is being handled on it. Returns how many
+    // were closed.
+    public int closeAll(String reason) {
+        int closed = 0;
+        for (Connection connection : connections) {
+            connection.forceClose(reason);
+            closed++;
+        }
+        return closed;
+    }
+
+    private void removed(Connection connection) {
+        if (connections.remove(connection) && draining) {
+            synchronized (connections) {
+                connections.notifyAll();
+            }
+        }
+    }
+
+    private void evictLeastRecentlyActive() {
+        Connection lru = null;
+        for (Connection connection : connections) {
+            if (connection.state != State.BUSY && connection.closeReason == null
+                && (lru == null || connection.lastActive < lru.lastActive)) {
+                lru = connection;
+            }
+        }
+        if (lru != null) {
+            lru.close("connection budget of " + maxConnections + " reached");
+        }
+    }
+
+    private void reap() {
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+            String reason;
+            synchronized (connection) {
+                if (connection.closeReason != null || connection.state == State.BUSY) {
+                    continue;
+                }
+                long inState = now - connection.since;
+                if (connection.state == State.IDLE && draining) {
+                    reason = "server shutting down";
+                } else if (connection.state == State.IDLE && idleTimeoutNanos > 0
+                    && inState > idleTimeoutNanos) {
+                    reason = "idle timeout";
+                } else if (connection.state == State.READING && headerTimeoutNanos > 0
+                    && inState > headerTimeoutNanos) {
+                    reason = "header read timeout";
+                } else if (maxLifetimeNanos > 0 && now - connection.created > maxLifetimeNanos) {
+                    reason = "maximum lifetime reached";
+                } else {
+                    continue;
+                }
+            }
+            connection.close(reason);
+        }
+    }
+
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+    }
+
+    private enum State {
+        // waiting for the first byte of the next request
+        IDLE,
+        // part of a request has arrived, the rest has not
+        READING,
+        // a request is being handled; never closed by the manager
+        BUSY
+    }
+
+    // One tracked connection. Whoever serves it reports state changes; the transitions are cheap
+    // enough to make on every request.
+    public final class Connection {
+
+        private final Closeable channel;
+        private final SocketAddress remoteAddr;
+        private final long created = System.nanoTime();
+        private volatile State state = State.IDLE;
+        private volatile long since = created;
+        private volatile long lastActive = created;
+        private volatile String closeReason;
+        private volatile Runnable onDrain;
+        private int requests = 0;
+
+        private Connection(Closeable channel, SocketAddress remoteAddr) {
+            this.channel = channel;
+            this.remoteAddr = remoteAddr;
+        }
+
+        // Waiting for the next request. While draining, the connection is closed instead.
+        public void idle() {
+            synchronized (this) {
+                state = State.IDLE;
+                since = lastActive = System.nanoTime();
+            }
+            if (draining) {
+                closeIfIdle();
+            }
+        }
+
+        // Runs when draining starts, for protocols that announce the shutdown to the client
+        // (HTTP/2 GOAWAY).
+        public void onDrain(Runnable onDrain) {
+            this.onDrain = onDrain;
+        }
+
+        // Part of a request has been read. The header timeout runs from the first call, so a
+        // client trickling in a byte at a time does not get to restart it.
+        public synchronized void reading() {
+            long now = System.nanoTime();
+            if (state != State.READING) {
+                state = State.READING;
+                since = now;
+            }
+            lastActive = now;
+        }
+
+        // Busy with something other than a counted request, e.g. HTTP/2 streams in flight.
+        public synchronized void active() {
+            state = State.BUSY;
+            since = lastActive = System.nanoTime();
+        }
+
+        // A request is about to be handled. Returns whether the connection may be kept alive
+        // afterwards; false once the request cap or the lifetime is reached, so the response can
+        // say "Connection: close".
+        public synchronized boolean beginRequest() {
+            long now = System.nanoTime();
+            state = State.BUSY;
+            since = lastActive = now;
+            requests++;
+            return closeReason == null && !draining && (maxRequests <= 0 || requests < maxRequests)
+                && (maxLifetimeNanos <= 0 || now - created < maxLifetimeNanos);
+        }
+
+        // Why the manager closed this connection, or null if it did not.
+        public String closeReason() {
+            return closeReason;
+        }
+
+        // Closes the connection unless a request is being handled on it by now.
+        void close(String reason) {
+            synchronized (this) {
+                if (closeReason != null || state == State.BUSY) {
+                    return;
+                }
+                closeReason = reason;
+            }
+            closeChannel(reason);
+        }
+
+        private void closeIfIdle() {
+            synchronized (this) {
+                if (state != State.IDLE) {
+                    return;
+                }
+            }
+            close("server shutting down");
+        }
+
+        private void forceClose(String reason) {
+            synchronized (this) {
+                if (closeReason != null) {
+                    return;
+                }
+                closeReason = reason;
+            }
+            closeChannel(reason);
+        }
+
+        private void closeChannel(String reason) {
+            logger.info("Closing connection from " + remoteAddr + ": " + reason);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug(e.getLocalizedMessage());
+            }
+            removed(this);
+        }
+
+        // Stops tracking the connection once it has been closed by whoever served it.
+        public void unregister() {
+            removed(this);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+// A single selector thread. It owns every connection registered with it: all reads, writes and
+// state changes of those connections happen on this thread, other threads hand work over through
+// execute().
+final class EventLoop implements Runnable, Executor {
+
+    private static final Logger logger = Logger.getLogger(EventLoop.class);
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final Executor workers;
+    private final RequestHandler handler;
+    private final ConnectionManager connections;
+    private final AdmissionController admission;
+    private final long maxBodySize;
+    private final TlsContext tls;
+    private volatile boolean running = true;
+
+    EventLoop(String name, Executor workers, RequestHandler handler,
+        ConnectionManager connections, AdmissionController admission, long maxBodySize,
+        TlsContext tls) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.handler = handler;
+        this.connections = connections;
+        this.admission = admission;
+        this.maxBodySize = maxBodySize;
+        this.tls = tls;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this, key, channel, workers, handler,
+                    connections, admission, maxBodySize, tls));
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+                admission.release();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // tasks the loop queued for itself while handling the last keys must not wait
+                // for the next event
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        logger.debug(e.getLocalizedMessage());
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+            } catch (Exception e) {
+                logger.fatal(e.getLocalizedMessage(), e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error(e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error(e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,22 @@
+package cis5550.webserver.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Implemented by the output streams the transports hand to request handlers. A response head and
+// body passed separately go out together, with one gathering write where that pays off, and a
+// large body is sent from the caller's array instead of being copied into a stream buffer first.
+public interface GatheringOutput {
+
+    // Writes the remaining bytes of head followed by body. The head buffer may be reused as soon
+    // as this returns; the body array must not be modified afterwards.
+    void writeGathered(ByteBuffer head, byte[] body) throws IOException;
+
+    // Writes the remaining bytes of head followed by count bytes of file from position, and
+    // returns once they are out. On a plain connection the file goes to the socket with
+    // FileChannel.transferTo (sendfile), never entering the Java heap; over TLS it is read and
+    // encrypted piece by piece. The caller keeps ownership of the file.
+    void writeFile(ByteBuffer head, FileChannel file, long position, long count)
+        throws IOException;
+}
@@ -0,0 +1,119 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+// The certificates of the virtual hosts, one SSLContext per key store, picked by the name the
+// client asks for through SNI. A name without a certificate of its own (or no name at all) gets
+// the default one. "*.example.com" covers the names one level below example.com.
+//
+// Each context is loaded once; after that, the key store file is looked at no more than once a
+// second, and a context whose file has changed is loaded again, so a renewed certificate takes
+// effect without a restart. If the new file cannot be loaded, the old context stays in use.
+public final class HostCertificates {
+
+    private static final Logger logger = Logger.getLogger(HostCertificates.class);
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Loader loader;
+    private final Map<String, Entry> hosts = new ConcurrentHashMap<>();
+    private volatile Entry defaultEntry;
+
+    // Builds the SSLContext for one key store.
+    public interface Loader {
+
+        SSLContext load(String keyStore, String password) throws IOException,
+            GeneralSecurityException;
+    }
+
+    public HostCertificates(Loader loader) {
+        this.loader = loader;
+    }
+
+    // Sets the certificate for names without one of their own.
+    public void setDefault(String keyStore, String password) throws IOException,
+        GeneralSecurityException {
+        defaultEntry = new Entry(keyStore, password);
+    }
+
+    public void add(String host, String keyStore, String password) throws IOException,
+        GeneralSecurityException {
+        hosts.put(host.toLowerCase(Locale.ROOT), new Entry(keyStore, password));
+    }
+
+    // The context for the SNI name host, which may be null.
+    public SSLContext forHost(String host) {
+        Entry entry = null;
+        if (host != null && !hosts.isEmpty()) {
+            host = host.toLowerCase(Locale.ROOT);
+            entry = hosts.get(host);
+            int dot = host.indexOf('.');
+            if (entry == null && dot > 0) {
+                entry = hosts.get("*" + host.substring(dot));
+            }
+        }
+        if (entry == null) {
+            entry = defaultEntry;
+        }
+        if (entry == null) {
+            throw new IllegalStateException("No certificate for " + host);
+        }
+        return entry.current();
+    }
+
+    private final class Entry {
+
+        private final String keyStore;
+        private final String password;
+        private volatile SSLContext context;
+        private volatile long lastModified;
+        private volatile long nextCheck;
+
+        Entry(String keyStore, String password) throws IOException, GeneralSecurityException {
+            this.keyStore = keyStore;
+            this.password = password;
+            this.lastModified = lastModified();
+            this.context = loader.load(keyStore, password);
+            this.nextCheck = System.nanoTime() + CHECK_INTERVAL_NANOS;
+        }
+
+        SSLContext current() {
+            long now = System.nanoTime();
+            if (now - nextCheck >= 0) {
+                reloadIfChanged(now);
+            }
+            return context;
+        }
+
+        private synchronized void reloadIfChanged(long now) {
+            if (now - nextCheck < 0) {
+                return;
+            }
+            nextCheck = now + CHECK_INTERVAL_NANOS;
+            try {
+                long modified = lastModified();
+                if (modified != lastModified) {
+                    // a file caught half-written is tried again once it changes again
+                    lastModified = modified;
+                    context = loader.load(keyStore, password);
+                    logger.info("Reloaded key store " + keyStore);
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                logger.warn("Could not reload key store " + keyStore + ", keeping the old one: "
+                    + e.getLocalizedMessage());
+            }
+        }
+
+        private long lastModified() throws IOException {
+            return Files.getLastModifiedTime(Path.of(keyStore)).toMillis();
+        }
+    }
+}
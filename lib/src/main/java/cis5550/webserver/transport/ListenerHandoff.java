@@ -0,0 +1,124 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Hands the listening ports from a running server to its replacement without closing them in
+// between. Both bind their ports with SO_REUSEPORT, so while they overlap the kernel spreads new
+// connections across the two; a Unix domain control socket tells the old server when the new one
+// is listening:
+//
+//   1. The new server binds its ports and connects to the control socket, if one is there.
+//   2. It sends READY; the old server stops accepting, gives up the control socket, and closes
+//      the control connection to say so.
+//   3. The new server binds the control socket itself, ready for its own successor, while the
+//      old one drains its connections.
+//
+// Connections the kernel had already queued on an old listening socket when it closed are reset
+// (Linux does not move them to the other socket), so that window is kept to one close() call.
+public final class ListenerHandoff implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ListenerHandoff.class);
+    private static final byte[] READY = "READY\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path path;
+    private final ServerSocketChannel control;
+    private final Handover handover;
+
+    // What the old server does when a successor is ready: stopAccepting() runs before the
+    // successor is told to go ahead, drain() after.
+    public interface Handover {
+
+        void stopAccepting() throws IOException;
+
+        void drain() throws IOException;
+    }
+
+    private ListenerHandoff(Path path, ServerSocketChannel control, Handover handover) {
+        this.path = path;
+        this.control = control;
+        this.handover = handover;
+    }
+
+    // Called once this server's ports are bound: takes over from the server currently holding
+    // the control socket at path, if there is one, and then listens on it for a successor.
+    public static ListenerHandoff takeOver(Path path, Handover handover) throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.exists(path)) {
+            try (SocketChannel predecessor = SocketChannel.open(address)) {
+                predecessor.write(ByteBuffer.wrap(READY));
+                // closed by the predecessor once it no longer accepts and has let go of path
+                predecessor.read(ByteBuffer.allocate(1));
+                logger.info("Took over the listeners from the server at " + path);
+            } catch (ConnectException e) {
+                logger.info("No server behind " + path + ", removing it");
+            }
+            Files.deleteIfExists(path);
+        }
+        ServerSocketChannel control = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        control.bind(address);
+        ListenerHandoff handoff = new ListenerHandoff(path, control, handover);
+        Thread thread = new Thread(handoff::awaitSuccessor, "listener-handoff");
+        thread.setDaemon(true);
+        thread.start();
+        return handoff;
+    }
+
+    private void awaitSuccessor() {
+        while (control.isOpen()) {
+            try {
+                if (handOverTo(control.accept())) {
+                    handover.drain();
+                    return;
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    // Stops accepting once successor says it is listening. Its connection is closed on the way
+    // out, which lets it go ahead before the drain, however long that takes.
+    private boolean handOverTo(SocketChannel successor) throws IOException {
+        try (successor) {
+            if (!readReady(successor)) {
+                return false;
+            }
+            logger.info("Successor is listening, handing over");
+            handover.stopAccepting();
+            close();
+            return true;
+        }
+    }
+
+    private static boolean readReady(SocketChannel channel) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(READY.length);
+        while (message.hasRemaining()) {
+            if (channel.read(message) < 0) {
+                return false;
+            }
+        }
+        return message.flip().equals(ByteBuffer.wrap(READY));
+    }
+
+    // Gives up the control socket, leaving path free for the next server.
+    @Override
+    public void close() throws IOException {
+        if (control.isOpen()) {
+            control.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
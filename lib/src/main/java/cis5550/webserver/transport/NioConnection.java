@@ -0,0 +1,565 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import cis5550.webserver.RequestBody;
+import cis5550.webserver.RequestHead;
+import cis5550.webserver.RequestParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-connection state of the NIO transport. Everything except the output stream is only touched
+// by the owning event loop. Bytes are read without blocking into readBuffer until a complete
+// request (head and Content-Length or chunked body) is present; only then is the request handed
+// to a worker.
+// Pipelined requests that are already complete in the buffer are handed over together and run in
+// order by one worker, and their responses are written with a single gathering write. While a
+// batch is in flight, reading is paused so that requests on one connection stay strictly ordered.
+// On a TLS port the bytes pass through a TlsSession on their way in and out; everything above it
+// sees plaintext.
+// A file body on a plain port is queued as a region of the file and sent by the loop with
+// transferTo as the socket takes it; the worker waits until it is out, since it owns the file.
+final class NioConnection {
+
+    private static final Logger logger = Logger.getLogger(NioConnection.class);
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    // a worker writing faster than the client reads blocks once this much is queued
+    private static final long HIGH_WATER_MARK = 1024 * 1024;
+    // piece size for file bodies over TLS
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    // bodies are held in memory whole, so there is a limit even if none was configured
+    private static final long DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    private final EventLoop loop;
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final Executor workers;
+    private final RequestHandler handler;
+    private final InetSocketAddress remoteAddr;
+    private final ConnectionManager.Connection tracked;
+    private final AdmissionController admission;
+    private final long maxBodySize;
+    // null on a plain port
+    private final TlsSession tls;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // goes out after everything in outbound; nothing is queued behind it while it is set
+    private volatile FileRegion pendingFile;
+    private final RequestParser parser = new RequestParser();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private boolean inFlight = false;
+    private boolean inputClosed = false;
+    private boolean closeAfterFlush = false;
+    // a 100 response was sent for the request at the head of readBuffer
+    private boolean continueSent = false;
+    // how far the chunked body of the request at the head of readBuffer has been scanned
+    private RequestBody.ChunkScanner chunkScanner;
+    private volatile boolean closed = false;
+
+    NioConnection(EventLoop loop, SelectionKey key, SocketChannel channel, Executor workers,
+        RequestHandler handler, ConnectionManager connections, AdmissionController admission,
+        long maxBodySize, TlsContext tlsContext) throws IOException {
+        this.loop = loop;
+        this.key = key;
+        this.channel = channel;
+        this.workers = workers;
+        this.handler = handler;
+        this.remoteAddr = (InetSocketAddress) channel.getRemoteAddress();
+        this.admission = admission;
+        this.maxBodySize = maxBodySize > 0 ? maxBodySize : DEFAULT_MAX_BODY_SIZE;
+        this.tls = tlsContext != null
+            ? new TlsSession(tlsContext, channel, key, loop, this::resumeTls) : null;
+        // the manager may close from any thread; the close itself has to happen on the loop
+        this.tracked = connections.register(() -> loop.execute(this::close), remoteAddr);
+    }
+
+    void onReadable() throws IOException {
+        if (read() < 0) {
+            inputClosed = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (!inFlight) {
+                close();
+            }
+            return;
+        }
+        tryDispatch();
+    }
+
+    void onWritable() throws IOException {
+        flushOutbound();
+        if (tls != null && tls.isHandshaking() && !closed) {
+            // the handshake was waiting for its last message to go out
+            onReadable();
+        }
+    }
+
+    private int read() throws IOException {
+        if (tls == null) {
+            readBuffer = RequestParser.ensureCapacity(readBuffer, readBuffer.position() + 1);
+            return channel.read(readBuffer);
+        }
+        boolean handshaking = tls.isHandshaking();
+        int total = 0;
+        try {
+            do {
+                readBuffer = RequestParser.ensureCapacity(readBuffer,
+                    readBuffer.position() + tls.applicationBufferSize());
+                int read = tls.read(readBuffer);
+                if (read < 0) {
+                    return total > 0 ? total : -1;
+                }
+                total += read;
+            } while (tls.hasBufferedInput());
+            return total;
+        } finally {
+            if (handshaking && !tls.isHandshaking() && !outbound.isEmpty() && key.isValid()) {
+                // what flushOutbound() held back for the handshake can go out now
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    // Picks up after a delegated handshake task, which ran with reading paused.
+    private void resumeTls() {
+        if (!inFlight && !inputClosed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        try {
+            onReadable();
+        } catch (IOException e) {
+            logger.debug(e.getLocalizedMessage());
+            close();
+        }
+    }
+
+    private void tryDispatch() {
+        if (inFlight || closed) {
+            return;
+        }
+        List<RequestHead> heads = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        while (true) {
+            RequestHead head;
+            try {
+                head = parser.parse(readBuffer);
+            } catch (IOException e) {
+                logger.warn(remoteAddr + ": " + e.getLocalizedMessage());
+                closeAfterFlush = true;
+                break;
+            }
+            if (head == null) {
+                break;
+            }
+            byte[] body;
+            int requestLength;
+            if (head.hasInvalidFraming()) {
+                // handed over without its body, to be answered with 400; where the body ends is
+                // anyone's guess, so the connection closes after that
+                RequestParser.consume(readBuffer, head.length());
+                heads.add(head);
+                bodies.add(new byte[0]);
+                break;
+            }
+            if (head.headerEquals("Transfer-Encoding", "chunked")) {
+                // complete requests only: the chunked body is decoded once all of it is here
+                if (chunkScanner == null) {
+                    chunkScanner = new RequestBody.ChunkScanner(head.length());
+                }
+                int bodyLength;
+                try {
+                    bodyLength = chunkScanner.scan(readBuffer.array(), readBuffer.position());
+                    if (chunkScanner.decodedLength() > maxBodySize
+                        || chunkScanner.scannedLength() - chunkScanner.decodedLength()
+                        > maxBodySize) {
+                        // as with Content-Length, answered with 413 without the body; framing
+                        // larger than the limit itself counts as well
+                        head.markBodyTooLarge();
+                        RequestParser.consume(readBuffer, head.length());
+                        chunkScanner = null;
+                        heads.add(head);
+                        bodies.add(new byte[0]);
+                        break;
+                    }
+                    if (bodyLength < 0) {
+                        sendContinueIfExpected(head);
+                        break;
+                    }
+                    body = RequestBody.dechunk(readBuffer.array(), head.length(),
+                        head.length() + bodyLength);
+                } catch (IOException e) {
+                    logger.warn(remoteAddr + ": " + e.getLocalizedMessage());
+                    chunkScanner = null;
+                    closeAfterFlush = true;
+                    break;
+                }
+                chunkScanner = null;
+                requestLength = head.length() + bodyLength;
+            } else {
+                long contentLength = head.contentLength();
+                if (contentLength < 0 || contentLength > Integer.MAX_VALUE - head.length()) {
+                    logger.warn(remoteAddr + ": invalid Content-Length");
+                    closeAfterFlush = true;
+                    break;
+                }
+                if (contentLength > maxBodySize) {
+                    // handed over without its body, to be answered with 413 right away; the
+                    // connection closes after that
+                    head.markBodyTooLarge();
+                    RequestParser.consume(readBuffer, head.length());
+                    heads.add(head);
+                    bodies.add(new byte[0]);
+                    break;
+                }
+                requestLength = head.length() + (int) contentLength;
+                if (readBuffer.position() < requestLength) {
+                    // the buffer grows as the body comes in, not by what the head announces
+                    sendContinueIfExpected(head);
+                    break;
+                }
+                body = new byte[(int) contentLength];
+                System.arraycopy(readBuffer.array(), head.length(), body, 0, body.length);
+            }
+            RequestParser.consume(readBuffer, requestLength);
+            continueSent = false;
+            heads.add(head);
+            bodies.add(body);
+        }
+        if (heads.isEmpty()) {
+            if (closeAfterFlush) {
+                close();
+            } else if (readBuffer.position() > 0) {
+                tracked.reading();
+            } else {
+                tracked.idle();
+            }
+            return;
+        }
+
+        inFlight = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        ConnectionOutputStream outputStream = new ConnectionOutputStream();
+        admission.dispatch(workers, () -> {
+            boolean keepAlive = false;
+            try {
+                for (int i = 0; i < heads.size(); i++) {
+                    keepAlive = handler.handle(heads.get(i),
+                        new ByteArrayInputStream(bodies.get(i)), remoteAddr,
+                        outputStream, tracked.beginRequest());
+                    if (!keepAlive) {
+                        break;
+                    }
+                }
+                outputStream.flush();
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+                keepAlive = false;
+            } catch (Exception e) {
+                logger.fatal(e.getLocalizedMessage(), e);
+                keepAlive = false;
+            } finally {
+                boolean keepAliveCapture = keepAlive;
+                loop.execute(() -> requestDone(keepAliveCapture));
+            }
+        }, () -> {
+            logger.info("Overloaded, turning away requests from " + remoteAddr);
+            try {
+                AdmissionController.writeServiceUnavailable(outputStream);
+            } catch (IOException e) {
+                logger.debug(e.getLocalizedMessage());
+            }
+            loop.execute(() -> requestDone(false));
+        });
+    }
+
+    // Requests only reach a worker once their body is complete, so a client waiting for
+    // "100 Continue" is told to go ahead as soon as the head is in; oversized bodies are turned
+    // away before this.
+    private void sendContinueIfExpected(RequestHead head) {
+        if (!continueSent && head.headerEquals("Expect", "100-continue")) {
+            continueSent = true;
+            try {
+                enqueue(ByteBuffer.wrap(RequestBody.CONTINUE));
+            } catch (IOException e) {
+                logger.debug(e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void requestDone(boolean keepAlive) {
+        inFlight = false;
+        if (closed) {
+            return;
+        }
+        if (!keepAlive || inputClosed || closeAfterFlush) {
+            closeAfterFlush = true;
+            if (outbound.isEmpty()) {
+                close();
+            }
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        tryDispatch();
+    }
+
+    private void enqueue(ByteBuffer buffer) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to " + remoteAddr + " closed");
+        }
+        outbound.add(buffer);
+        long pending = pendingBytes.addAndGet(buffer.remaining());
+        scheduleFlush();
+        if (pending > HIGH_WATER_MARK) {
+            synchronized (this) {
+                while (pendingBytes.get() > HIGH_WATER_MARK && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while writing to " + remoteAddr, e);
+                    }
+                }
+            }
+        }
+    }
+
+    // Queues the region behind what is in outbound and waits until the loop has sent all of it.
+    private void sendFile(FileRegion region) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to " + remoteAddr + " closed");
+        }
+        pendingFile = region;
+        scheduleFlush();
+        synchronized (this) {
+            while (pendingFile == region && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing to " + remoteAddr, e);
+                }
+            }
+        }
+        if (region.position < region.end) {
+            throw new IOException("Connection to " + remoteAddr + " closed");
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flushOutbound();
+                } catch (IOException e) {
+                    logger.debug(e.getLocalizedMessage());
+                    close();
+                }
+            });
+        }
+    }
+
+    private void flushOutbound() throws IOException {
+        if (closed) {
+            return;
+        }
+        while (!outbound.isEmpty()) {
+            ByteBuffer[] buffers = outbound.toArray(new ByteBuffer[0]);
+            long written = tls != null ? tls.write(buffers) : channel.write(buffers);
+            if (pendingBytes.addAndGet(-written) <= HIGH_WATER_MARK) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    if (tls != null && tls.isHandshaking()) {
+                        // the data waits for read() to finish the handshake, which asks for
+                        // OP_WRITE again; until then only handshake messages still to go out
+                        // need it, or the loop would spin on a writable channel
+                        if (tls.flush()) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        }
+                        return;
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+        }
+        FileRegion file = pendingFile;
+        if (file != null) {
+            if (!file.transferTo(channel)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingFile = null;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        if (tls != null && !tls.flush()) {
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        tracked.unregister();
+        admission.release();
+        logger.info("Closing connection from " + remoteAddr);
+        if (tls != null) {
+            tls.close();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error(e.getLocalizedMessage(), e);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    // Handed to the worker running a request; collects small writes and passes them on to the
+    // event loop in OUTPUT_BUFFER_SIZE pieces.
+    private final class ConnectionOutputStream extends OutputStream implements GatheringOutput {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.remaining()) {
+                flush();
+            }
+            if (len >= OUTPUT_BUFFER_SIZE) {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                enqueue(ByteBuffer.wrap(copy));
+            } else {
+                buffer.put(b, off, len);
+            }
+        }
+
+        // The head is copied, since the caller reuses its buffer; a body too big for the buffer is
+        // queued as it is and goes out from the caller's array in the same gathering write.
+        @Override
+        public void writeGathered(ByteBuffer head, byte[] body) throws IOException {
+            if (head.remaining() + body.length <= buffer.remaining()) {
+                buffer.put(head);
+                buffer.put(body);
+                return;
+            }
+            if (head.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (head.remaining() > buffer.remaining()) {
+                enqueue(ByteBuffer.allocate(head.remaining()).put(head).flip());
+            } else {
+                buffer.put(head);
+            }
+            flush();
+            enqueue(ByteBuffer.wrap(body));
+        }
+
+        // Over TLS the file is read in pieces that are queued like any other output, so the high
+        // water mark bounds how much of it is in memory.
+        @Override
+        public void writeFile(ByteBuffer head, FileChannel file, long position, long count)
+            throws IOException {
+            if (head.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (head.remaining() > buffer.remaining()) {
+                enqueue(ByteBuffer.allocate(head.remaining()).put(head).flip());
+            } else {
+                buffer.put(head);
+            }
+            flush();
+            if (tls == null) {
+                sendFile(new FileRegion(file, position, count));
+                return;
+            }
+            long end = position + count;
+            while (position < end) {
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(FILE_CHUNK_SIZE,
+                    end - position));
+                while (chunk.hasRemaining()) {
+                    if (file.read(chunk, position + chunk.position()) < 0) {
+                        throw new IOException("File shrank while being sent");
+                    }
+                }
+                position += chunk.position();
+                enqueue(chunk.flip());
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                enqueue(buffer);
+                buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+            }
+        }
+    }
+
+    // The part of a file still to be sent.
+    private static final class FileRegion {
+
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        // Sends as much as the socket takes. Returns whether all of it is out.
+        boolean transferTo(SocketChannel channel) throws IOException {
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent == 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File shrank while being sent");
+                    }
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+// Selector-based transport: one acceptor thread hands new connections round-robin to a fixed set
+// of event loops, which read requests without blocking and only occupy a worker from the given
+// executor while a complete request is being handled. Idle keep-alive connections therefore cost
+// a buffer, not a thread.
+public class NioTransport implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(NioTransport.class);
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final AdmissionController admission;
+    // whether the port speaks TLS
+    private final boolean secure;
+    private int nextLoop = 0;
+
+    // With reusePort, other sockets may bind the same port (see ListenerHandoff). With a
+    // TlsContext the port speaks TLS, else plain HTTP.
+    public NioTransport(int port, boolean reusePort, int numLoops, Executor workers,
+        RequestHandler handler, ConnectionManager connections, AdmissionController admission,
+        long maxBodySize, TlsContext tls) throws IOException {
+        if (numLoops < 1) {
+            throw new IllegalArgumentException("At least one event loop is required");
+        }
+        this.serverChannel = ServerSocketChannel.open();
+        if (reusePort) {
+            this.serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.admission = admission;
+        this.secure = tls != null;
+        this.loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop("event-loop-" + i, workers, handler, connections,
+                admission, maxBodySize, tls);
+        }
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        new Thread(this::accept, "acceptor-" + getLocalPort()).start();
+    }
+
+    private void accept() {
+        logger.info("Listening on " + serverChannel.socket().getInetAddress() + ":" + getLocalPort()
+            + " with " + loops.length + " event loop(s)");
+        while (isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                logger.info("Incoming connection from " + channel.getRemoteAddress());
+                if (!admission.tryAcquire()) {
+                    logger.info("Too many connections, turning away " + channel.getRemoteAddress());
+                    // still in blocking mode, so the socket adapter's streams work; a TLS client
+                    // is closed on without a plaintext answer
+                    AdmissionController.reject(channel.socket(), secure);
+                    continue;
+                }
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public boolean isOpen() {
+        return serverChannel.isOpen();
+    }
+
+    // Closes the listening socket; connections already accepted are still served.
+    public void stopAccepting() throws IOException {
+        serverChannel.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
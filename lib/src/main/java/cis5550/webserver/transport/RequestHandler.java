@@ -0,0 +1,17 @@
+package cis5550.webserver.transport;
+
+import cis5550.webserver.RequestHead;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+@FunctionalInterface
+public interface RequestHandler {
+
+    // Handles one request and writes the response to the given stream. The body comes de-chunked;
+    // it may still be read from the connection as the handler consumes it. keepAlive is false if
+    // the connection is going to be closed after this request anyway. Returns whether the
+    // connection may stay open for further requests.
+    boolean handle(RequestHead head, InputStream body, InetSocketAddress remoteAddr,
+        OutputStream outputStream, boolean keepAlive) throws Exception;
+}
@@ -0,0 +1,56 @@
+package cis5550.webserver.transport;
+
+import java.util.concurrent.Executor;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+// What the TLS connections of one NIO transport share: the certificates with their SSLContexts
+// (and with those the session caches that let returning clients skip the full handshake), the
+// pool of record buffers, and the executor for the expensive steps of a handshake. SSLEngine
+// hands those steps (key exchange, signing) out as delegated tasks; running them there instead
+// of on an event loop keeps a burst of new connections from stalling every connection that loop
+// serves.
+public final class TlsContext {
+
+    // record buffers kept for reuse; each is a bit over 16KB
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final HostCertificates certificates;
+    private final String[] applicationProtocols;
+    private final Executor handshakeExecutor;
+    private final BufferPool buffers;
+    private final int applicationBufferSize;
+
+    public TlsContext(HostCertificates certificates, String[] applicationProtocols,
+        Executor handshakeExecutor) {
+        this.certificates = certificates;
+        this.applicationProtocols = applicationProtocols;
+        this.handshakeExecutor = handshakeExecutor;
+        SSLEngine probe = certificates.forHost(null).createSSLEngine();
+        this.buffers = new BufferPool(probe.getSession().getPacketBufferSize(), MAX_POOLED_BUFFERS);
+        this.applicationBufferSize = probe.getSession().getApplicationBufferSize();
+    }
+
+    // An engine with the certificate for the SNI name host, which may be null.
+    SSLEngine newEngine(String host) {
+        SSLEngine engine = certificates.forHost(host).createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    // Room a read has to leave for the plaintext of one record.
+    int applicationBufferSize() {
+        return applicationBufferSize;
+    }
+
+    Executor handshakeExecutor() {
+        return handshakeExecutor;
+    }
+}
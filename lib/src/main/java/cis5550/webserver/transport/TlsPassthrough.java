@@ -0,0 +1,145 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Layer-4 routing for hosts whose backends terminate TLS themselves: once the SNI name in the
+// ClientHello has picked a backend, the bytes are relayed between the two connections untouched,
+// the ClientHello first. Nothing is decrypted, so the handshake costs this server nothing.
+//
+// Java has no socket-to-socket splice(), so each direction is a read into a direct buffer and a
+// write from it; the bytes never pass through the Java heap. Both directions run on the calling
+// thread, in non-blocking mode behind one selector, so a relay ties up no thread but its worker.
+// When one side stops sending, the other side's output is shut down and the relay carries on
+// until both are done, so half-closed connections work; a relay on which nothing has moved for the
+// idle timeout is torn down.
+public final class TlsPassthrough {
+
+    private static final Logger logger = Logger.getLogger(TlsPassthrough.class);
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    // "host:port" of the backend, keyed by SNI name; "*.example.com" covers the names one level
+    // below example.com
+    private final Map<String, String> backends = new ConcurrentHashMap<>();
+
+    public void add(String host, String backend) {
+        if (backend.lastIndexOf(':') < 0) {
+            throw new IllegalArgumentException("Backend has to be given as host:port: " + backend);
+        }
+        backends.put(host.toLowerCase(Locale.ROOT), backend);
+    }
+
+    public boolean isEmpty() {
+        return backends.isEmpty();
+    }
+
+    // The backend for the SNI name host, or null if the connection is served here.
+    public String backendFor(String host) {
+        if (host == null || backends.isEmpty()) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        String backend = backends.get(host);
+        int dot = host.indexOf('.');
+        if (backend == null && dot > 0) {
+            backend = backends.get("*" + host.substring(dot));
+        }
+        return backend;
+    }
+
+    // Connects to backend, sends it what was read from the client so far, and relays both ways
+    // until both sides have closed, or until nothing has moved either way for idleMillis (0 for no
+    // limit). The backend's name is resolved for every connection.
+    public static void relay(SocketChannel client, byte[] alreadyRead, String backend,
+        long idleMillis) throws IOException {
+        int colon = backend.lastIndexOf(':');
+        InetSocketAddress address = new InetSocketAddress(backend.substring(0, colon),
+            Integer.parseInt(backend.substring(colon + 1)));
+        try (SocketChannel upstream = SocketChannel.open(); Selector selector = Selector.open()) {
+            upstream.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            upstream.socket().setTcpNoDelay(true);
+            ByteBuffer hello = ByteBuffer.wrap(alreadyRead);
+            while (hello.hasRemaining()) {
+                upstream.write(hello);
+            }
+            client.configureBlocking(false);
+            upstream.configureBlocking(false);
+            Direction toBackend = new Direction(client, upstream);
+            Direction toClient = new Direction(upstream, client);
+            SelectionKey clientKey = client.register(selector, 0);
+            SelectionKey upstreamKey = upstream.register(selector, 0);
+            long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            long lastMoved = System.nanoTime();
+            while (!toBackend.done || !toClient.done) {
+                clientKey.interestOps(toBackend.readInterest() | toClient.writeInterest());
+                upstreamKey.interestOps(toClient.readInterest() | toBackend.writeInterest());
+                selector.select(idleMillis > 0 ? idleMillis : 0);
+                selector.selectedKeys().clear();
+                if (toBackend.transfer() | toClient.transfer()) {
+                    lastMoved = System.nanoTime();
+                } else if (!client.isOpen()
+                    || idleNanos > 0 && System.nanoTime() - lastMoved >= idleNanos) {
+                    logger.debug("Closing idle relay from " + client.getRemoteAddress());
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // a reset on one side ends both directions
+            logger.debug(e.getLocalizedMessage());
+        }
+    }
+
+    // One direction of a relay: what is read from one channel is written to the other.
+    private static final class Direction {
+
+        private final SocketChannel from;
+        private final SocketChannel to;
+        // holds what has been read and not written yet; starts out empty
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+        private boolean eof = false;
+        private boolean done = false;
+
+        Direction(SocketChannel from, SocketChannel to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        // Moves what can be moved without blocking; returns whether anything was.
+        boolean transfer() throws IOException {
+            boolean moved = false;
+            if (!eof && !buffer.hasRemaining()) {
+                buffer.clear();
+                int n = from.read(buffer);
+                buffer.flip();
+                eof = n < 0;
+                moved = n > 0;
+            }
+            if (buffer.hasRemaining()) {
+                moved |= to.write(buffer) > 0;
+            }
+            if (eof && !buffer.hasRemaining() && !done) {
+                to.shutdownOutput();
+                done = true;
+            }
+            return moved;
+        }
+
+        int readInterest() {
+            return eof || buffer.hasRemaining() ? 0 : SelectionKey.OP_READ;
+        }
+
+        int writeInterest() {
+            return buffer.hasRemaining() ? SelectionKey.OP_WRITE : 0;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package cis5550.webserver.transport;
+
+import cis5550.tools.SNIInspector;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+// TLS on one non-blocking connection, through an SSLEngine. Only the event loop owning the
+// connection calls in. The engine is only created once the ClientHello is in, since the
+// certificate (and with it the SSLContext) depends on the SNI name it carries. The handshake runs
+// as a side effect of read() (and of write() and flush() when the engine has something to send);
+// while a delegated task is running on the handshake executor the connection is not read, and
+// resume runs on the loop once the task is done.
+//
+// Ciphertext sits in pooled direct buffers, which go back to the pool as soon as they are empty;
+// plaintext is decrypted straight into the connection's read buffer and encrypted straight from
+// its outbound buffers.
+final class TlsSession {
+
+    private static final ByteBuffer[] NO_DATA = new ByteBuffer[0];
+
+    // null until the ClientHello has been read
+    private SSLEngine engine;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final TlsContext context;
+    private final Executor loop;
+    private final Runnable resume;
+    // ciphertext read but not decrypted yet, fill mode; null while there is none
+    private ByteBuffer netIn;
+    // ciphertext encrypted but not written yet, flush mode; null while there is none
+    private ByteBuffer netOut;
+    private boolean taskRunning = false;
+    private boolean inboundClosed = false;
+    // the last read stopped because the destination was full, not because input ran out
+    private boolean moreBuffered = false;
+
+    TlsSession(TlsContext context, SocketChannel channel, SelectionKey key, Executor loop,
+        Runnable resume) throws IOException {
+        this.context = context;
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.resume = resume;
+    }
+
+    // Room dst needs before each read().
+    int applicationBufferSize() {
+        return context.applicationBufferSize();
+    }
+
+    boolean isHandshaking() {
+        if (engine == null) {
+            return true;
+        }
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    // Whether the last read() left records that did not fit into dst.
+    boolean hasBufferedInput() {
+        return moreBuffered;
+    }
+
+    // Reads what the channel has and decrypts it into dst, which must have
+    // applicationBufferSize() bytes of room. Returns the number of plaintext bytes added, or -1
+    // once the peer has closed the connection (or sent close_notify).
+    int read(ByteBuffer dst) throws IOException {
+        moreBuffered = false;
+        if (inboundClosed) {
+            return -1;
+        }
+        if (taskRunning) {
+            return 0;
+        }
+        if (netIn == null) {
+            netIn = context.buffers().acquire();
+        }
+        boolean eof = netIn.hasRemaining() && channel.read(netIn) < 0;
+        int produced = engine != null || startEngine() ? unwrap(dst) : 0;
+        if (netIn.position() == 0) {
+            context.buffers().release(netIn);
+            netIn = null;
+        }
+        if (produced == 0 && (eof || inboundClosed)) {
+            inboundClosed = true;
+            return -1;
+        }
+        return produced;
+    }
+
+    // Creates the engine once the first record, the ClientHello, is complete in netIn. The record
+    // stays in netIn for the engine to read.
+    private boolean startEngine() throws IOException {
+        if (netIn.position() < 5) {
+            return false;
+        }
+        byte[] record = new byte[5 + 16384];
+        netIn.get(0, record, 0, 5);
+        SNIInspector inspector = new SNIInspector();
+        try {
+            int length = SNIInspector.recordLength(record);
+            if (netIn.position() < length) {
+                return false;
+            }
+            netIn.get(0, record, 0, length);
+            inspector.parseClientHello(record, length);
+        } catch (Exception e) {
+            throw new IOException("Not a TLS ClientHello: " + e.getLocalizedMessage(), e);
+        }
+        SNIHostName name = inspector.getHostName();
+        engine = context.newEngine(name != null ? name.getAsciiName() : null);
+        engine.beginHandshake();
+        return true;
+    }
+
+    private int unwrap(ByteBuffer dst) throws IOException {
+        int produced = 0;
+        netIn.flip();
+        try {
+            while (true) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    return produced;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    if (!wrapHandshake()) {
+                        return produced;
+                    }
+                    continue;
+                }
+                if (!netIn.hasRemaining()) {
+                    return produced;
+                }
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.limit() == netIn.capacity()
+                            && netIn.capacity() < engine.getSession().getPacketBufferSize()) {
+                            // a record bigger than the pooled buffers
+                            ByteBuffer grown = ByteBuffer.allocateDirect(
+                                engine.getSession().getPacketBufferSize());
+                            grown.put(netIn).flip();
+                            netIn = grown;
+                        }
+                        return produced;
+                    case BUFFER_OVERFLOW:
+                        moreBuffered = true;
+                        return produced;
+                    case CLOSED:
+                        inboundClosed = true;
+                        return produced;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // Runs the engine's delegated tasks on the handshake executor; reading is paused until they
+    // are done.
+    private void runDelegatedTasks() {
+        taskRunning = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        context.handshakeExecutor().execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            loop.execute(() -> {
+                taskRunning = false;
+                if (key.isValid()) {
+                    resume.run();
+                }
+            });
+        });
+    }
+
+    // Produces and sends the next handshake message. Returns false if the channel cannot take
+    // more right now; the rest is sent once it is writable.
+    private boolean wrapHandshake() throws IOException {
+        if (!flush()) {
+            return false;
+        }
+        netOut = context.buffers().acquire();
+        SSLEngineResult result = engine.wrap(NO_DATA, netOut);
+        netOut.flip();
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining()) {
+            throw new IOException("TLS connection closed during handshake");
+        }
+        flush();
+        return true;
+    }
+
+    // Encrypts and writes as much of srcs as the channel takes. Returns the number of plaintext
+    // bytes consumed; whatever was encrypted but not written yet goes out with flush().
+    long write(ByteBuffer[] srcs) throws IOException {
+        long consumed = 0;
+        while (flush() && remaining(srcs) > 0) {
+            if (isHandshaking()) {
+                // data queued before the handshake is done waits for it
+                return consumed;
+            }
+            netOut = context.buffers().acquire();
+            SSLEngineResult result = engine.wrap(srcs, netOut);
+            netOut.flip();
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new IOException("TLS connection closed");
+            }
+        }
+        return consumed;
+    }
+
+    // Writes pending ciphertext. Returns whether all of it went out; if not, the connection is
+    // registered for OP_WRITE.
+    boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return false;
+        }
+        context.buffers().release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    // Sends close_notify if the channel takes it right away, and returns the buffers.
+    void close() {
+        if (engine != null) {
+            engine.closeOutbound();
+            try {
+                if (flush()) {
+                    netOut = context.buffers().acquire();
+                    engine.wrap(NO_DATA, netOut);
+                    netOut.flip();
+                    flush();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                // the connection is being closed anyway
+            }
+        }
+        if (netIn != null) {
+            context.buffers().release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            context.buffers().release(netOut);
+            netOut = null;
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+}